@@ -0,0 +1,119 @@
+package DemoThree;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of a single broadcast as a function of the number of recipients.
+ *
+ * Every recipient is a real Session with a real Outbound, only the socket is replaced by a
+ * sink which counts the bytes it is given. The writer task is run inline by the ready
+ * callback, so one invocation covers queueing, draining and writing for every recipient.
+ *
+ * The legacy variant is the loop the server used to run, a PrintWriter per client and a
+ * fresh "MESSAGE " + text per recipient, against the same kind of sink.
+ *
+ * The benchmarks live outside src on purpose, they need jmh-core and its annotation
+ * processor on the classpath, for instance
+ *
+ *   javac -cp jmh-core.jar:jmh-generator-annprocess.jar -d bench-out src/DemoThree/*.java bench/DemoThree/*.java
+ *   java -cp jmh-core.jar:jopt-simple.jar:commons-math3.jar:bench-out org.openjdk.jmh.Main
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+
+    private Room room;
+    private List<PrintWriter> writers;
+    private Sink sink;
+    private final String text = "alice: the quick brown fox jumps over the lazy dog";
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sink = new Sink();
+        // The room's shard is the benchmark thread itself
+        SessionRegistry registry = new SessionRegistry();
+        room = new Room("bench", Runnable::run, registry);
+        writers = new ArrayList<>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            Session session = new Session("user" + i, "10.0.0." + (i & 255), inline(sink));
+            registry.register(session);
+            room.enter(session);
+            writers.add(new PrintWriter(new Sink(), true));
+        }
+    }
+
+    // Encodes once and queues the shared frame for the room, as ChatServer.broadcast does
+    @Benchmark
+    public long frames() {
+        room.deliver(Frame.message(text));
+        return sink.written;
+    }
+
+    // The old writers loop, one String and one encoding per recipient
+    @Benchmark
+    public void legacy(Blackhole hole) {
+        for (PrintWriter writer : writers) {
+            writer.println("MESSAGE " + text);
+        }
+        hole.consume(writers);
+    }
+
+    // An Outbound whose writer task runs right away on the sending thread
+    static Outbound inline(OutputStream sink) {
+        Outbound[] out = new Outbound[1];
+        byte[] scratch = new byte[Frame.CHUNK];
+        out[0] = new Outbound(Outbound.CAPACITY, Outbound.OverflowPolicy.DROP_OLDEST, () -> {
+            try {
+                do {
+                    Frame frame;
+                    while ((frame = out[0].poll()) != null) {
+                        frame.writeTo(sink, false, scratch);
+                    }
+                } while (out[0].rearm());
+            } catch (java.io.IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, () -> { });
+        return out[0];
+    }
+
+    // Stands in for a socket, only counts what it is given
+    static final class Sink extends OutputStream {
+        long written;
+
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            written += length;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package DemoThree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of an input line as the handler's input loop does it, from the raw line to the
+ * command and its arguments. Nothing is run, only matched. The bytes variant is what the
+ * line transports do, on the line as it was received.
+ *
+ * The legacy variant is the chain of toLowerCase().startsWith tests the loop used to go
+ * through for every single line, commands or not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    private static final String[] VERBS = {
+        "/quit", "/help", "/whisper", "/userlist", "/crdntrlist", "/dthlist",
+        "/serverip", "/clientip", "/bestow", "/dethrone", "/y", "/n",
+    };
+
+    // Mostly chat, some commands, as a busy room would send them
+    private final String[] inputs = {
+        "hello everyone",
+        "/whisper bob are you there?",
+        "did anybody see the match yesterday",
+        "/userlist",
+        "/y",
+        "/dethrone alice",
+        "/nope that is not a command",
+        "see you all tomorrow",
+    };
+    private final ByteBuffer[] received = new ByteBuffer[inputs.length];
+    private int next;
+
+    {
+        for (int i = 0; i < inputs.length; i++) {
+            received[i] = ByteBuffer.wrap(inputs[i].getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private String input() {
+        return inputs[next++ & (inputs.length - 1)];
+    }
+
+    @Benchmark
+    public void table(Blackhole hole) {
+        String input = input();
+        if (input.startsWith("/")) {
+            CommandTable.Entry<ChatServer.Handler> entry = ChatServer.Handler.COMMANDS.lookup(input);
+            hole.consume(entry);
+            if (entry != null) {
+                hole.consume(CommandTable.arguments(input));
+            }
+        }
+    }
+
+    @Benchmark
+    public void bytes(Blackhole hole) {
+        ByteBuffer input = received[next++ & (received.length - 1)];
+        if (input.get(0) == '/') {
+            CommandTable.Entry<ChatServer.Handler> entry = ChatServer.Handler.COMMANDS.lookup(input);
+            hole.consume(entry);
+            if (entry != null) {
+                hole.consume(CommandTable.arguments(input));
+            }
+        }
+    }
+
+    @Benchmark
+    public void legacy(Blackhole hole) {
+        String input = input();
+        for (String verb : VERBS) {
+            if (input.toLowerCase().startsWith(verb)) {
+                hole.consume(verb);
+                hole.consume(input.replace(verb + " ", ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package DemoThree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The coordination state machine at various membership sizes, driven through its on
+ * methods on the benchmark thread instead of the coordination thread.
+ *
+ * Announcements are dropped, so what is measured is the election and vote counting and
+ * not the fan-out or the server log, BroadcastBenchmark covers the fan-out on its own.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinationBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    // Drops every announcement
+    private static final Coordination.Announcer SILENT = new Coordination.Announcer() {
+        @Override
+        public void broadcast(String room, String message) {
+        }
+
+        @Override
+        public void log(String message) {
+        }
+    };
+
+    private SessionRegistry sessions;
+    private Coordination coordination;
+    private String[] names;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        sessions = new SessionRegistry();
+        coordination = new Coordination(Room.LOBBY, sessions, Runnable::run, SILENT);
+        names = new String[members];
+        for (int i = 0; i < members; i++) {
+            names[i] = "user" + i;
+            sessions.register(new Session(names[i], "10.0.0." + (i & 255), new Outbound(() -> { }, () -> { })));
+            coordination.onJoin(names[i]);
+        }
+    }
+
+    private String coordinator() {
+        return coordination.coordinators().iterator().next();
+    }
+
+    // The coordinator leaves and rejoins, which runs findcoordinator twice and moves the role along
+    @Benchmark
+    public void election() {
+        Session coordinator = sessions.get(coordinator());
+        // The same order as Handler.close and Handler.join
+        sessions.remove(coordinator);
+        coordination.onLeave(coordinator.name);
+        sessions.register(coordinator);
+        coordination.onJoin(coordinator.name);
+    }
+
+    // A whole dethrone vote, from /dethrone to the deciding /y, concludevoting runs on every vote
+    @Benchmark
+    public void dethrone() {
+        String coordinator = coordinator();
+        coordination.onDethrone(names[0], coordinator);
+        for (int i = 1; i <= members / 2; i++) {
+            coordination.onVote(names[i], true);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package DemoThree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the recipient of a /whisper. The registry answers with one hash lookup, the
+ * legacy variant walks the names set counting until it meets the recipient and then takes
+ * the writer at that index, which is what the server used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WhisperBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int users;
+
+    private SessionRegistry registry;
+    private Set<String> names;
+    private List<Object> writers;
+    private String[] recipients;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = new SessionRegistry();
+        names = new HashSet<>();
+        writers = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            String name = "user" + i;
+            registry.register(new Session(name, "10.0.0." + (i & 255), new Outbound(() -> { }, () -> { })));
+            names.add(name);
+            writers.add(new Object());
+        }
+        // Spread the recipients over the whole population, so the legacy walk is not always short
+        recipients = new String[64];
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = "user" + (i * 7919 % users);
+        }
+    }
+
+    private String recipient() {
+        return recipients[next++ & (recipients.length - 1)];
+    }
+
+    @Benchmark
+    public Object registry() {
+        return registry.get(recipient());
+    }
+
+    @Benchmark
+    public Object legacy() {
+        String told = recipient();
+        int index = 0;
+        for (String name : names) {
+            if (name.equals(told)) {
+                return writers.get(index);
+            }
+            index++;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,115 @@
+package DemoThree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary variant of the chat protocol. Every frame is
+ *
+ *   int length | byte opcode | length - 1 bytes of UTF-8 payload
+ *
+ * so a frame is found by reading four bytes, without scanning for newlines or running any
+ * regex, and the payload can be decoded straight from the receive buffer.
+ *
+ * Clients opt in during the handshake: the server offers it with "GETIP BINARY", which a
+ * line client still reads as GETIP, and a binary client answers with "BINARY <ip>" instead
+ * of just its ip. Everything after that answer is binary, in both directions.
+ *
+ * GETIP offers heartbeats the same way, in either protocol: a client that answers PING
+ * puts "HEARTBEAT " in front of its answer, and only such a client is pinged and hung up on
+ * when it goes quiet. The offer reads "GETIP HEARTBEAT BINARY", so clients which only look
+ * for the binary offer at the end still find it.
+ */
+final class BinaryProtocol {
+
+    // The handshake line a binary client answers GETIP with
+    static final String OFFER = "BINARY";
+    // The capability a client answers GETIP with to be sent heartbeats, whichever protocol it speaks
+    static final String HEARTBEATS = "HEARTBEAT";
+
+    // Server to client
+    static final byte SUBMITNAME = 1;
+    static final byte NAMEACCEPTED = 2;
+    static final byte MESSAGE = 3;
+    // Any other protocol line, carried whole as the payload
+    static final byte LINE = 4;
+    // Sent to a quiet client, which answers with PONG, no payload
+    static final byte PING = 5;
+
+    // Client to server
+    static final byte NAME = 16;
+    static final byte TEXT = 17;
+    // Payload is the recipient, a newline and the message
+    static final byte WHISPER = 18;
+    // Payload is a single 'y' or 'n'
+    static final byte VOTE = 19;
+    static final byte QUIT = 20;
+    static final byte PONG = 21;
+
+    // Frames larger than this are refused, whichever side sends them
+    static final int MAX_FRAME = Integer.getInteger("chat.binary.maxframe", 64 * 1024);
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * The opcode of an encoded protocol line from its first word, LINE if that word has no
+     * opcode of its own. For any other opcode the first word is left out of the payload.
+     */
+    static byte opcode(ByteBuffer line, int keywordLength) {
+        if (matches(line, keywordLength, "MESSAGE")) {
+            return MESSAGE;
+        }
+        if (matches(line, keywordLength, "SUBMITNAME")) {
+            return SUBMITNAME;
+        }
+        if (matches(line, keywordLength, "NAMEACCEPTED")) {
+            return NAMEACCEPTED;
+        }
+        if (matches(line, keywordLength, "PING")) {
+            return PING;
+        }
+        return LINE;
+    }
+
+    private static boolean matches(ByteBuffer line, int length, String keyword) {
+        if (length != keyword.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line.get(line.position() + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Encodes a whole frame, used by the client where frames are not shared
+    static ByteBuffer encode(byte opcode, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(5 + bytes.length);
+        frame.putInt(1 + bytes.length).put(opcode).put(bytes);
+        frame.flip();
+        return frame;
+    }
+
+    // Decodes a payload straight from the buffer it was received in
+    static String text(ByteBuffer payload) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Position of the first newline in the payload, or -1, used to split whispers without decoding first
+    static int separator(ByteBuffer payload) {
+        for (int i = payload.position(); i < payload.limit(); i++) {
+            if (payload.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
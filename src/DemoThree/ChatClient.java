@@ -4,12 +4,8 @@ package DemoThree;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 import java.awt.BorderLayout;
 import javax.swing.JFrame;
@@ -17,6 +13,8 @@ import javax.swing.JOptionPane;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 /**
  * A simple Swing-based client for the chat server. Graphically it is a frame with a text
@@ -29,6 +27,16 @@ import javax.swing.JTextField;
  * sending the server arbitrary strings to be broadcast to all chatters connected to the
  * server. When the server sends a line beginning with "MESSAGE" then all characters
  * following this string should be displayed in its message area.
+ *
+ * When the server offers the binary protocol along with GETIP, the client takes it and
+ * exchanges BinaryProtocol frames from then on, unless started with -Dchat.protocol=line.
+ *
+ * The protocol is spoken by ChatClientCore, this class is only the window around it.
+ *
+ * Incoming lines are not appended one by one from the network thread. They go to a bounded
+ * Scrollback, and a Swing timer moves them to the text area in one batch per frame, about
+ * 30 times a second, so a busy room cannot flood the event dispatch thread. Only the last
+ * -Dchat.scrollback lines (1000 by default) are kept on screen.
  */
 public class ChatClient {
 	
@@ -37,11 +45,16 @@ public class ChatClient {
 
     String serverAddress;
     int serverPort;
-    Scanner in;
-    PrintWriter out;
+    // The protocol itself, this class only displays what it receives
+    ChatClientCore core;
     JFrame frame = new JFrame("Chatter");
     JTextField textField = new JTextField(50);
     JTextArea messageArea = new JTextArea(16, 50);
+    // Filled by the network thread, emptied into the text area by the render timer
+    Scrollback scrollback = new Scrollback(Integer.getInteger("chat.scrollback", 1000));
+    Timer renderTimer = new Timer(33, e -> render());
+    // How many seconds a lost connection is retried for, -Dchat.reconnect, as long as the server keeps the session by default
+    static final long RECONNECT = Long.getLong("chat.reconnect", 30);
 
     /**
      * Constructs the client by laying out the GUI and registering a listener with the
@@ -70,12 +83,30 @@ public class ChatClient {
         // Send on enter then clear to prepare for next message
         textField.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
-                out.println(textField.getText());
+                core.send(textField.getText());
                 textField.setText("");
             }
         });
     }
 
+    // Runs on the event dispatch thread, appends what arrived since the last frame and trims the oldest lines
+    void render() {
+        StringBuilder batch = new StringBuilder();
+        if (scrollback.drainTo(batch) == 0) {
+            return;
+        }
+        messageArea.append(batch.toString());
+        // The text ends with a newline, so the last line is always empty
+        int excess = messageArea.getLineCount() - 1 - scrollback.capacity();
+        if (excess > 0) {
+            try {
+                messageArea.replaceRange("", 0, messageArea.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                // Cannot happen, the line was just counted
+            }
+        }
+    }
+
     private String getName() {
         return JOptionPane.showInputDialog(
             frame,
@@ -85,36 +116,61 @@ public class ChatClient {
         );
     }
 
-    private void run() throws IOException {
-        try {
-        	// Using the InetAddress, the client's ip can be stored in a variable
-        	String clientAddress = InetAddress.getLocalHost().getHostAddress();
-            Socket socket = new Socket(serverAddress, serverPort);
-            in = new Scanner(socket.getInputStream());
-            out = new PrintWriter(socket.getOutputStream(), true);
+    private void run() throws IOException, InterruptedException {
+        core = new ChatClientCore(serverAddress, serverPort, ChatClientCore.binaryByDefault(), new ChatClientCore.Listener() {
+            public String screenName() {
+                return getName();
+            }
 
-            while (in.hasNextLine()) {
-                String line = in.nextLine();
-                if (line.startsWith("SUBMITNAME")) {
-                    out.println(getName());
-                } else if (line.startsWith("NAMEACCEPTED")) {
-                    this.frame.setTitle("Chatter - " + line.substring(13));
-                    textField.setEditable(true);
-                // Sends the ip address of this client to the server on demand
-                } else if (line.startsWith("GETIP")) {
-                    out.println(clientAddress);
-                } else if (line.startsWith("GETPORT")) {
-                    out.println(clientAddress);
-                } else if (line.startsWith("MESSAGE")) {
-                    messageArea.append(line.substring(8) + "\n");
-                }
+            public void accepted(String name) {
+                frame.setTitle("Chatter - " + name);
+                textField.setEditable(true);
             }
+
+            public void message(String text) {
+                scrollback.add(text);
+            }
+        });
+        renderTimer.start();
+        try {
+            core.run();
+            reconnect();
         } finally {
+            renderTimer.stop();
             frame.setVisible(false);
             frame.dispose();
         }
     }
 
+    /**
+     * Takes the session back after the connection was lost, for as long as the server keeps
+     * it. The first attempt is made at once and the pause between attempts doubles from
+     * 25ms up to a second, so a server restarting from its snapshot is back within a few
+     * attempts while one that is gone for longer is not hammered.
+     */
+    private void reconnect() throws InterruptedException {
+        long pause = 25;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RECONNECT);
+        boolean told = false;
+        while (core.canResume() && System.nanoTime() - deadline < 0) {
+            if (!told) {
+                scrollback.add("Connection lost, reconnecting...");
+                told = true;
+            }
+            try {
+                core.run();
+                // Connected again, a later drop starts over
+                pause = 25;
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RECONNECT);
+                told = false;
+            } catch (IOException e) {
+                // The server is not listening yet
+                Thread.sleep(pause);
+                pause = Math.min(pause * 2, 1000);
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
     	// If the command line arguments are not three lines, the client does not launch
         if (args.length != 3) {
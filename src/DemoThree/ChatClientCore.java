@@ -0,0 +1,243 @@
+package DemoThree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * The chat protocol as seen from a client, without any user interface. It connects,
+ * answers GETIP, negotiates the binary protocol if wanted, asks its listener for a screen
+ * name on every SUBMITNAME, signs up for the server's heartbeat PINGs and answers them,
+ * and hands it the chat lines the server sends.
+ *
+ * The server hands out a resumption token along with NAMEACCEPTED. Running the client
+ * again after the connection dropped presents it right away, without waiting for GETIP,
+ * and the server gives the session back in that one round trip, name and role included,
+ * followed by whatever was said in the meantime.
+ *
+ * The Swing client is one listener, the load generator runs thousands of others.
+ */
+final class ChatClientCore {
+
+    /**
+     * What the client core needs from whoever drives it. Called on the reading thread.
+     */
+    interface Listener {
+        // Asked on every SUBMITNAME, until the server accepts a name
+        String screenName();
+
+        // The server accepted the name, chat may be sent from now on
+        void accepted(String name);
+
+        // A line to display, without the MESSAGE keyword
+        void message(String text);
+    }
+
+    private final String serverAddress;
+    private final int serverPort;
+    private final boolean binaryWanted;
+    private final Listener listener;
+
+    private Socket socket;
+    private String clientAddress;
+    private PrintWriter out;
+    // Only used once the binary protocol has been negotiated
+    private volatile boolean binary;
+    private DataInputStream frames;
+    private DataOutputStream output;
+    // The token of the current session, null until the server hands one out or after /quit
+    private volatile String resumeToken;
+
+    ChatClientCore(String serverAddress, int serverPort, boolean binaryWanted, Listener listener) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.binaryWanted = binaryWanted;
+        this.listener = listener;
+    }
+
+    // The protocol the client asks for unless told otherwise with -Dchat.protocol=line
+    static boolean binaryByDefault() {
+        return !"line".equals(System.getProperty("chat.protocol"));
+    }
+
+    /**
+     * Connects and handles what the server sends until it goes away. Blocks the calling
+     * thread for the whole session. Resumes the previous session if there is a token for it.
+     */
+    void run() throws IOException {
+        // Using the InetAddress, the client's ip can be stored in a variable
+        clientAddress = InetAddress.getLocalHost().getHostAddress();
+        socket = new Socket(serverAddress, serverPort);
+        binary = false;
+        try {
+            InputStream input = socket.getInputStream();
+            out = new PrintWriter(socket.getOutputStream(), true);
+            // Server lines can be as long as a binary frame, the buffer only grows that far for a long one
+            LineDecoder lines = new LineDecoder(8192, BinaryProtocol.MAX_FRAME);
+            String token = resumeToken;
+            boolean resuming = token != null;
+            if (resuming) {
+                // Pipelined, this is our answer to the GETIP the server is sending at the same time
+                // A server handing out tokens offers heartbeats too
+                out.println("RESUME " + token + " " + BinaryProtocol.HEARTBEATS + " " + (binaryWanted ? BinaryProtocol.OFFER + " " : "") + clientAddress);
+            }
+            while (lines.read(input)) {
+                String line = lines.text();
+                if (line.startsWith("GETIP") && (resuming || binaryWanted && line.endsWith(" " + BinaryProtocol.OFFER))) {
+                    if (!resuming) {
+                        out.println(answer(line, BinaryProtocol.OFFER + " " + clientAddress));
+                    }
+                    // Take up the binary protocol, the frames the decoder already received are read first
+                    if (binaryWanted) {
+                        readFrames(lines.rest(input));
+                        break;
+                    }
+                    // Already answered
+                    resuming = false;
+                    continue;
+                }
+                handleLine(line);
+            }
+        } catch (IOException e) {
+            // The connection was lost or closed under us, which ends the session like the server going away
+        } finally {
+            close();
+        }
+    }
+
+    // Whether running again would try to take the previous session over
+    boolean canResume() {
+        return resumeToken != null;
+    }
+
+    // Ends the session, the reading thread returns from run
+    void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    // The answer to GETIP, signing up for heartbeats when the server offers them
+    private static String answer(String getip, String answer) {
+        for (String offer : getip.split(" ")) {
+            if (offer.equals(BinaryProtocol.HEARTBEATS)) {
+                return BinaryProtocol.HEARTBEATS + " " + answer;
+            }
+        }
+        return answer;
+    }
+
+    // Handles a line of the line protocol
+    private void handleLine(String line) {
+        if (line.startsWith("SUBMITNAME")) {
+            out.println(listener.screenName());
+        } else if (line.startsWith("NAMEACCEPTED")) {
+            listener.accepted(line.substring(13));
+        } else if (line.startsWith("RESUMETOKEN")) {
+            resumeToken = line.substring(12);
+        // Sends the ip address of this client to the server on demand
+        } else if (line.startsWith("GETIP")) {
+            out.println(answer(line, clientAddress));
+        } else if (line.startsWith("GETPORT")) {
+            out.println(clientAddress);
+        } else if (line.startsWith("MESSAGE")) {
+            listener.message(line.substring(8));
+        // The server checks we are still there
+        } else if (line.startsWith("PING")) {
+            out.println("/pong");
+        }
+    }
+
+    // Switches to the binary protocol and reads frames until the server goes away
+    private void readFrames(InputStream input) throws IOException {
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frames = new DataInputStream(new BufferedInputStream(input));
+        binary = true;
+        byte[] received = new byte[256];
+        while (true) {
+            int length;
+            try {
+                length = frames.readInt();
+            } catch (IOException e) {
+                return;
+            }
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+                return;
+            }
+            if (length > received.length) {
+                received = new byte[Math.max(length, received.length * 2)];
+            }
+            frames.readFully(received, 0, length);
+            String payload = BinaryProtocol.text(ByteBuffer.wrap(received, 1, length - 1));
+            switch (received[0]) {
+                case BinaryProtocol.SUBMITNAME:
+                    sendFrame(BinaryProtocol.NAME, String.valueOf(listener.screenName()));
+                    break;
+                case BinaryProtocol.NAMEACCEPTED:
+                    listener.accepted(payload);
+                    break;
+                case BinaryProtocol.MESSAGE:
+                    listener.message(payload);
+                    break;
+                case BinaryProtocol.PING:
+                    sendFrame(BinaryProtocol.PONG, "");
+                    break;
+                case BinaryProtocol.LINE:
+                    handleLine(payload);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sends what the user typed, as a line or as the matching binary frame. May be called
+     * from any thread once the name has been accepted.
+     */
+    void send(String text) {
+        // Leaving on purpose, there is nothing to come back to
+        if (text.trim().equalsIgnoreCase("/quit")) {
+            resumeToken = null;
+        }
+        if (!binary) {
+            out.println(text);
+            return;
+        }
+        String lower = text.toLowerCase();
+        if (lower.startsWith("/whisper ")) {
+            // The recipient and the message go in separately, the server does not have to parse them
+            String rest = text.substring(9).trim();
+            int space = rest.indexOf(' ');
+            String recipient = space < 0 ? rest : rest.substring(0, space);
+            String message = space < 0 ? "" : rest.substring(space + 1);
+            sendFrame(BinaryProtocol.WHISPER, recipient + "\n" + message);
+        } else if (lower.equals("/y") || lower.equals("/n")) {
+            sendFrame(BinaryProtocol.VOTE, lower.substring(1));
+        } else if (lower.equals("/quit")) {
+            sendFrame(BinaryProtocol.QUIT, "");
+        } else {
+            sendFrame(BinaryProtocol.TEXT, text);
+        }
+    }
+
+    private synchronized void sendFrame(byte opcode, String payload) {
+        try {
+            ByteBuffer encoded = BinaryProtocol.encode(opcode, payload);
+            output.write(encoded.array(), 0, encoded.limit());
+            output.flush();
+        } catch (IOException e) {
+            // The reading side notices the broken connection and ends the session
+        }
+    }
+}
@@ -7,10 +7,16 @@ import java.io.*;
 import java.net.*;
 import java.net.Socket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A multithreaded chat room server. When a client connects the server requests a screen
@@ -25,85 +31,278 @@ import java.util.concurrent.*;
  */
 public class ChatServer {
 
-    // All client names, so we can check for duplicates upon registration.
-    private static Set<String> names = new HashSet<>();
+    // The shared state is kept in concurrent collections rather than guarded with synchronized blocks,
+    // since a virtual thread blocking inside a monitor pins its carrier thread
     
-    // All coordinator names
-    private static Set<String> coordinators = new HashSet<>();
+    // All the registered clients, indexed by their names, so we can check for duplicates upon registration.
+    // Every entry holds the client's outbound queue, ip and roles, which used to be kept in parallel collections
+    private static SessionRegistry sessions = new SessionRegistry();
     
-    // All Client IP Addresses, this is not a list considering that many clients can share the same IP
-    private static List<String> ips = new ArrayList<String>();
+    // The rooms, each with its own members, coordinator election and dethrone voting, spread over -Dchat.shards threads
+    private static final Rooms rooms = new Rooms(sessions, Integer.getInteger("chat.shards", Runtime.getRuntime().availableProcessors()));
     
-    // All yes voters, used to store the names of the users who have cast a vote
-    private static Set<String> yesvoters = new HashSet<>();
+    // Counters and latencies, readable with /stats and over JMX
+    static final ServerMetrics metrics = new ServerMetrics(sessions);
     
-    // All yes voters, used to store the names of the users who have cast a vote
-    private static Set<String> novoters = new HashSet<>();
+    // The other servers sharing this chat room, null unless started with -Dchat.cluster
+    static volatile Cluster cluster;
     
-    // List of dethroned users, these users are not allowed to be nominated as coordinators unless the server lifetime is up
-    private static Set<String> dethroned = new HashSet<>();
-
-    // The set of all the print writers for all the clients, used for broadcast.
-    private static Set<PrintWriter> writers = new HashSet<>();
+    // The port clients connect to, -Dchat.port lets several servers run on one host
+    private static final int PORT = Integer.getInteger("chat.port", 59001);
+    
+    // The optional journal of everything broadcast, enabled with -Dchat.journal=<directory>
+    private static MessageJournal journal;
     
+    // Runs the writer tasks of the blocking transports, which drain each client's outbound queue into its socket
+    private static ExecutorService writerTasks;
+
+    // A client quiet for -Dchat.heartbeat seconds (15 by default, 0 to turn it off) is pinged,
+    // one quiet for three heartbeats is taken for dead and hung up on
+    static final long HEARTBEAT = Long.getLong("chat.heartbeat", 15);
+    // A client that dropped without /quit has -Dchat.resume.grace seconds (30 by default, 0 to turn it off)
+    // to come back with its resumption token and take its session over, roles and missed lines included
+    static final long GRACE = Long.getLong("chat.resume.grace", 30);
+    // The sessions waiting for their client to come back, by the digest of their resumption token
+    private static final ConcurrentHashMap<String, Handler> parked = new ConcurrentHashMap<>();
+    // The sessions whose client is still connected, as far as the server can tell, by the same digest
+    // A client whose connection died without a FIN comes back before its old one is taken for dead
+    private static final ConcurrentHashMap<String, Handler> live = new ConcurrentHashMap<>();
+    private static final SecureRandom tokens = new SecureRandom();
+
+    // Watches every connection for silence and times the parked sessions out, null when both are off
+    private static TimerWheel wheel;
+
     // The server socket and the port
+    // The transport is picked at startup with -Dchat.transport, "pool" being the original thread per connection,
+    // "virtual" running every handler on its own virtual thread instead of the pool of 500,
+    // and "nio" the selector based event loops, which can hold far more idle chatters than there are threads
     public static void main(String[] args) throws Exception {
         System.out.println("The chat server is running...");
-        ExecutorService pool = Executors.newFixedThreadPool(500);
-        try (ServerSocket listener = new ServerSocket(59001)) {
+        String transport = System.getProperty("chat.transport", "pool");
+        openJournal();
+        metrics.register();
+        if (HEARTBEAT > 0 || GRACE > 0) {
+            // 512 slots of 100ms, one turn of the wheel covers the usual heartbeats
+            wheel = new TimerWheel(100, TimeUnit.MILLISECONDS, 512);
+            wheel.start();
+        }
+        openSnapshot();
+        // The cluster is joined before taking any clients, so names are claimed cluster wide from the start
+        Cluster peers = Cluster.fromProperties(sessions, rooms);
+        if (peers != null) {
+            cluster = peers;
+            peers.start();
+        }
+        if (transport.equals("nio")) {
+        	int loops = Integer.getInteger("chat.loops", Runtime.getRuntime().availableProcessors());
+        	System.out.println("Using the non-blocking transport with " + loops + " event loops");
+        	new NioTransport(PORT, loops).serve();
+        	return;
+        }
+        ExecutorService pool = transport.equals("virtual") ? virtualThreadExecutor() : Executors.newFixedThreadPool(500);
+        // Writer tasks only hold a thread while they have something to write
+        writerTasks = transport.equals("virtual") ? pool : Executors.newCachedThreadPool();
+        try (ServerSocket listener = new ServerSocket(PORT)) {
             while (true) {
                 pool.execute(new Handler(listener.accept()));
             }
         }
     }
     
-    // A simple function to assign a new coordinator
-    // If every user has been dethroned, the list is cleared, as there are no coordinator candidates
-    public static void findcoordinator() {
-    	if (dethroned.equals(names)) {
-    		dethroned.clear();
-    		for (PrintWriter writer : writers) {
-                writer.println("MESSAGE " + "System: " + " all users are now requalified to be coordinators");
-            }
-    	}
-    	// Server needs to have at least one member to be qualified as a coordinator
-    	if (!names.isEmpty() && coordinators.isEmpty()) {
-    		for (String i : names) {
-    			// The user must not be dethroned
-    		    if (!dethroned.contains(i)) {
-    		    	coordinators.add(i);
-    		    	for (PrintWriter writer : writers) {
-    		    		// Announcing the change
-                        writer.println("MESSAGE " + i + " is now the coordinator");
-                    }
-                	System.out.println(i + " is now the coordinator");
-    		    	break;
-    		    }
-    		}
+    // The journal keeps the broadcasts in memory mapped segments of -Dchat.journal.segment bytes,
+    // of which the newest -Dchat.journal.segments are kept, and replays the last -Dchat.journal.replay lines to new clients
+    private static void openJournal() throws IOException {
+        String directory = System.getProperty("chat.journal");
+        if (directory == null) {
+            return;
+        }
+        int replay = Math.min(Integer.getInteger("chat.journal.replay", 50), Outbound.CAPACITY / 2);
+        journal = MessageJournal.open(java.nio.file.Paths.get(directory),
+                Integer.getInteger("chat.journal.segment", 16 * 1024 * 1024),
+                Integer.getInteger("chat.journal.segments", 8),
+                replay);
+        System.out.println("Journaling broadcasts to " + directory);
+    }
+    
+    // With -Dchat.snapshot=<file> the rooms and sessions are saved every -Dchat.snapshot.interval milliseconds (500 by default)
+    // and restored on startup, the clients of the previous run then resume their sessions as after a dropped connection
+    // A cluster does not need it, the other nodes keep the state while one of them restarts
+    private static void openSnapshot() throws IOException {
+        String file = System.getProperty("chat.snapshot");
+        if (file == null) {
+            return;
+        }
+        if (System.getProperty("chat.cluster") != null) {
+            System.out.println("Snapshots are not taken in cluster mode");
+            return;
+        }
+        java.nio.file.Path path = java.nio.file.Paths.get(file);
+        StateSnapshot saved = StateSnapshot.read(path);
+        if (saved != null) {
+            restore(saved);
+        }
+        StateSnapshot.start(path, Long.getLong("chat.snapshot.interval", 500), sessions, rooms);
+    }
+
+    // Parks the saved sessions for their clients to resume, then gives every room its coordination back
+    // The room's shard handles the sessions entering before the coordination, so the roles find them registered
+    private static void restore(StateSnapshot saved) {
+        Map<String, Set<String>> restored = new HashMap<>();
+        // Without the grace window there is nothing to resume with, only the rooms' history comes back
+        if (GRACE > 0) {
+            for (StateSnapshot.SessionState session : saved.sessions) {
+                if (Handler.restore(session)) {
+                    restored.computeIfAbsent(session.room, room -> new HashSet<>()).add(session.name);
+                }
+            }
+        }
+        // Only the lobby and the rooms somebody was restored into are there, the others were left empty
+        for (StateSnapshot.RoomState state : saved.rooms) {
+            Room room = rooms.find(state.room);
+            if (room != null) {
+                room.coordination.restore(state, restored.getOrDefault(state.room, Collections.emptySet()));
+            }
+        }
+        System.out.println("Restored " + saved.rooms.size() + " rooms and " + sessions.size() + " sessions from the snapshot");
+    }
+
+    // Virtual threads are only there from Java 21 on, so the executor is looked up reflectively
+    // and the server falls back to the fixed pool on older runtimes
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            ExecutorService pool = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            System.out.println("Running every client on its own virtual thread");
+            return pool;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available on this Java version, using the fixed pool instead");
+            return Executors.newFixedThreadPool(500);
+        }
+    }
+    
+    // The reply to /help never changes, so it is encoded once for the whole server lifetime
+    private static final Frame[] HELP = {
+        Frame.message("System: "),
+        Frame.message("* /whisper - sends a private message to a user"),
+        Frame.message("* /quit - shuts the client session"),
+        Frame.message("* /join - moves to another room, which is created if needed"),
+        Frame.message("* /leave - goes back to the lobby"),
+        Frame.message("* /rooms - lists the rooms and how many users are in them"),
+        Frame.message("* /userlist - list of current users in the room, /userlist <version> for what changed since then"),
+        Frame.message("* /crdntrlist - list of current coordinators"),
+        Frame.message("* /dthlist - list of dethroned users"),
+        Frame.message("* /serverip - displays the server's ip"),
+        Frame.message("* /clientip - displays all the clients' ip -  requires coordinator status"),
+        Frame.message("* /bestow - grants coordinator status to a user -  requires coordinator status"),
+        Frame.message("* /dethrone - Starts a voting process to dethrone a coordinator"),
+        Frame.message("* /stats - displays the server's counters and latencies -  requires coordinator status"),
+    };
+    
+    // Sends a message to everybody in a room
+    // The message is built and encoded once, then the same frame is queued for everybody
+    static void broadcast(String room, String message) {
+        broadcast(room, Frame.message(message));
+    }
+    
+    static void broadcast(String room, Frame frame) {
+        deliver(room, frame);
+        // The other cluster nodes fan it out to their own clients
+        Cluster peers = cluster;
+        if (peers != null) {
+            peers.relay(room, frame);
+        }
+    }
+    
+    // Sends a frame to one user only, wherever in the cluster they are connected
+    static void tell(String name, Frame frame) {
+        Session session = sessions.get(name);
+        if (session == null) {
+            return;
+        }
+        Cluster peers = cluster;
+        if (session.isLocal()) {
+            session.out.send(frame);
+        } else if (peers != null) {
+            peers.tell(session, frame);
+        }
+    }
+
+    // Sends a frame to the room's clients on this server only, which is also where broadcasts relayed by other nodes end up
+    // The fan-out itself runs on the room's shard
+    static void deliver(String room, Frame frame) {
+        Room target = rooms.find(room);
+        if (target != null) {
+            target.deliver(frame);
+        }
+        // The journal only queues the frame, it is written to disk by the journal's own thread
+        // Only the lobby is journaled, as that is where the history is replayed
+        if (journal != null && room.equals(Room.LOBBY)) {
+            journal.append(frame);
         }
     }
+    
     /**
      * The client handler task.
+     *
+     * The protocol itself lives in onLine, which is fed one line at a time, so the same handler can be
+     * driven by a blocking socket (see run) or by the non-blocking event loops in NioTransport.
      */
-    private static class Handler implements Runnable {
+    static class Handler implements Runnable {
     	// Name refers to the name of the client
         // The client's ip is requested directly from the client itself just like the name
-    	// Printwriter allows the user to interract with the chat, like hitting the enter key to send a message
-    	// Printwriter sends messages from the server to the client
-    	// Scanner receives messages from the client
-    	// Target is used to store the name of the target of the vote, it is static since any reset could disturb the voting process
-    	// "told" is used to store the recepient of the private message
+    	// Output sends messages from the server to the client, it is only touched by the writer task
+    	// Outbound is the bounded queue of frames for the client, which the writer task drains into the output
+    	// "lines" splits what the client sends into lines, until it switches to the binary protocol which is read through "frames"
+    	// Session is this client's entry in the registry, it is only set once the name has been accepted
+    	// "binary" tells which protocol the client speaks, "writingBinary" which encoding the writer task is at
+    	// The writer only switches when it reaches the marker queued by the switch, so every frame goes out in the encoding of when it was queued
         private String name;
-        private String ip;
+        // Set once the client answered GETIP, the idle check looks at it from the timer wheel
+        private volatile String ip;
+        // Whether the client answers PINGs, older clients never do and are left alone once they answered GETIP
+        private volatile boolean heartbeats;
         private Socket socket;
-        private Scanner in;
-        private PrintWriter out;
-        private static String target;
-        private static String told;
-        private int currentindex = 0;
-        private int desiredindex = 0;
-        private int senderindex = 0;
-        // currentindex, desiredindex and senderindex are to iterate through the list of printwriters for the /whisper command
+        private LineDecoder lines;
+        private DataInputStream frames;
+        private OutputStream output;
+        // Mapped journal frames are copied to the output through this, only the writer task uses it
+        private byte[] scratch;
+        private Outbound out;
+        private volatile Session session;
+        // The room the client is in, all their chat goes there
+        private volatile Room room;
+        // Set while the cluster leader is deciding on the submitted name, lines are ignored until it answers
+        private volatile boolean claiming;
+        // The leader's answer is applied on the link's thread, this keeps close and the client's next lines out until it is
+        private final ReentrantLock claimLock = new ReentrantLock();
+        private volatile boolean closed;
+        // Whether the client said goodbye with /quit, the session carries the token it could have resumed with
+        private volatile boolean quitting;
+        // Set once the session can be taken over while this connection still looks alive, and
+        // once the client did take it over on another connection
+        private volatile boolean listed;
+        private volatile boolean superseded;
+        private volatile boolean binary;
+        private volatile boolean writingBinary;
+        private byte[] received = new byte[256];
+        // The start of this client's chat lines, only used by the reading side
+        private byte[] said;
+        // When the connection was accepted, the handshake is measured from here
+        private final long accepted = System.nanoTime();
+        // Chat and commands are limited separately, only the reading side charges them
+        private final RateLimit chatLimit = RateLimit.chat();
+        private final RateLimit commandLimit = RateLimit.commands();
+        private boolean throttled;
+        // When the client last sent anything, the idle check looks at it every heartbeat
+        private volatile long lastRead = System.nanoTime();
+        private final Runnable hangUp;
+        
+        // The handshake lines are the same for every client
+        // GETIP also offers heartbeats and the binary protocol, line clients only look at the first word
+        private static final Frame GETIP = Frame.line("GETIP " + BinaryProtocol.HEARTBEATS + " " + BinaryProtocol.OFFER);
+        private static final Frame SUBMITNAME = Frame.line("SUBMITNAME");
+        private static final Frame PING = Frame.line("PING");
+        private static final Frame MULTILINE = Frame.message("System: Invalid input, a message has to be a single line");
+        private static final Frame THROTTLED = Frame.message("System: You are sending too fast, your next lines will be read a bit later");
 
         /**
          * Constructs a handler thread, squirreling away the socket. All the interesting
@@ -112,32 +311,47 @@ public class ChatServer {
          */
         public Handler(Socket socket) {
             this.socket = socket;
+            this.hangUp = this::disconnect;
+            metrics.connections.increment();
+        }
+
+        /**
+         * Constructs a handler for a connection owned by another transport, which reads the
+         * lines itself and drains the outbound queue towards the client. Hanging up has to
+         * end the connection the way that transport ends it, which then closes the handler.
+         */
+        Handler(Outbound out, Runnable hangUp) {
+            this.out = out;
+            this.hangUp = hangUp;
+            metrics.connections.increment();
         }
         
-        // A simple function to conclude the voting process
-        public static void concludevoting( ) {
-        	// if the yesvoters constitute more than half of the server population, the voting is decisive and therefore it concludes
-        	if (yesvoters.size() > names.size()/2) {
-            	coordinators.remove(target);
-            	dethroned.add(target);
-            	for (PrintWriter writer : writers) {
-            		writer.println("MESSAGE " + "System: " + target + " has been dethroned");
-                }
-            	//The hashsets for voters are cleared, it is important as this is used to determine whether there is a voting process
-            	yesvoters.clear();
-            	novoters.clear();
-            }
-            
-        	// if the novoters constitute more than half of the server population, the voting is indecisive and therefore it concludes
-            if (novoters.size() > names.size()/2) {
-            	for (PrintWriter writer : writers) {
-            		writer.println("MESSAGE " + "System: " + target + " reigns for another day");
-                }
-            	yesvoters.clear();
-            	novoters.clear();
+        // A session saved by the snapshot, its client is away until it resumes with the token
+        private Handler(StateSnapshot.SessionState saved) {
+            this.out = new Outbound(() -> {}, () -> {});
+            this.hangUp = () -> {};
+            this.name = saved.name;
+            this.ip = saved.ip;
+            this.session = new Session(name, ip, out);
+            session.setRoom(saved.room);
+            session.setTokenDigest(saved.tokenDigest);
+            this.closed = true;
+        }
+
+        /**
+         * Brings a session of the previous run back as a parked one, as if its client had
+         * just dropped, so the client can resume it and get whatever it missed meanwhile.
+         * Returns false if the name is already taken.
+         */
+        static boolean restore(StateSnapshot.SessionState saved) {
+            Handler handler = new Handler(saved);
+            if (!sessions.register(handler.session)) {
+                return false;
             }
-            // A new coordinator will be found, if applicable or needed
-            findcoordinator();
+            handler.room = rooms.occupy(saved.room);
+            handler.room.enter(handler.session);
+            handler.park();
+            return true;
         }
 
         /**
@@ -148,280 +362,815 @@ public class ChatServer {
          */
         public void run() {
             try {
-                in = new Scanner(socket.getInputStream());
-                out = new PrintWriter(socket.getOutputStream(), true);
-                
-                // Request the client's IP, in a very similar fashion to the name
-                out.println("GETIP");
-                ip = in.nextLine();
-
-                // Keep requesting a name until we get a unique one.
+                InputStream input = socket.getInputStream();
+                lines = new LineDecoder(LineDecoder.MAX_LINE);
+                // The default size, every connection holds one even while idle, and the writer task flushes once per batch anyway
+                // A batch larger than the buffer just reaches the socket in a few writes
+                output = new BufferedOutputStream(socket.getOutputStream());
+                scratch = new byte[Frame.CHUNK];
+                out = new Outbound(() -> writerTasks.execute(this::drain), this::disconnect);
+                open();
                 while (true) {
-                    out.println("SUBMITNAME");
-                    name = in.nextLine();
-                    if (name == null) {
-                        return;
-                    }
-                    synchronized (names) {
-                        if (!name.isEmpty() && !names.contains(name)) {
-                            names.add(name);
-                            ips.add(ip);
-                            break;
+                    if (binary) {
+                        // Whatever of the first frames the decoder already received is read before the socket's stream
+                        if (frames == null) {
+                            frames = new DataInputStream(new BufferedInputStream(lines.rest(input)));
                         }
-                    }
-                }
-
-                // Now that a successful name has been chosen, add the socket's print writer
-                // to the set of all writers so this client can receive broadcast messages.
-                // But BEFORE THAT, let everyone else know that the new person has joined!
-                
-                // The writer should be added first, so that the "has joined" message would be visible to themselves
-                writers.add(out);
-                
-                out.println("NAMEACCEPTED " + name);
-                for (PrintWriter writer : writers) {
-                	// The welcome message
-                    writer.println("MESSAGE " + "Welcome " + name + "!");
-                    writer.println("MESSAGE " + "We hope you brought pizza");
-                    writer.println("MESSAGE " + "Type /help to list down all the commands");
-                }
-                
-                // The writer which happens to join first gets notified, this is applicable multiple times during the server lifetime
-                if (names.size() == 1) {
-                	for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + names.stream().findFirst().get() + " is the first one to join");
-                    }
-                	System.out.println(names.stream().findFirst().get() + " is the first one to join");
-                }
-                
-                // If the naming process is successful, coordinator check occurs
-                // Check if there's a coordinator, if not, assign
-                findcoordinator();
-
-                // Accept messages from this client and broadcast them.
-                while (true) {
-                	// The server will attempt to nominate a coordinator at all times
-                	findcoordinator();
-                	
-                	// The user input
-                    String input = in.nextLine();
-                    
-                    // Executable commands, mainly for debugging purposes
-                    // The quit command, shuts down the client
-                    if (input.toLowerCase().startsWith("/quit")) {
-                        return;
-                    }
-                    // Normal messages
-                    // All messages are broadcasted, UNLESS they start with /whisper which means they are meant to be private
-                    for (PrintWriter writer : writers) {
-                    	if (!input.toLowerCase().startsWith("/whisper")) {
-                        writer.println("MESSAGE " + name + ": " + input);
-                    	}
-                    }
-                    // The help command, lists down all the commands
-                    if (input.toLowerCase().startsWith("/help")) {
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: ");
-                            writer.println("MESSAGE " + "* /whisper - sends a private message to a user");
-                            writer.println("MESSAGE " + "* /quit - shuts the client session");
-                            writer.println("MESSAGE " + "* /userlist - list of current users");
-                            writer.println("MESSAGE " + "* /crdntrlist - list of current coordinators");
-                            writer.println("MESSAGE " + "* /dthlist - list of dethroned users");
-                            writer.println("MESSAGE " + "* /serverip - displays the server's ip");
-                            writer.println("MESSAGE " + "* /clientip - displays all the clients' ip -  requires coordinator status");
-                            writer.println("MESSAGE " + "* /bestow - grants coordinator status to a user -  requires coordinator status");
-                            writer.println("MESSAGE " + "* /dethrone - Starts a voting process to dethrone a coordinator");
-                        }
-                    }
-                    // Send a private message to a user
-                    if (input.toLowerCase().startsWith("/whisper")) {
-                    	input = input.replace("/whisper ","");
-                    	String[] toldsplit = input.split("\\s+");
-                    	told = toldsplit[0];
-                    	told.toString();
-                    	// the command part is erased, then, the input is split by the spaces
-                    	// the first part, which has to be the private message's recipient, has its name stored in "told"
-                    	
-                    	// the recipients name is erased from the remaining input, leaving just the message behind
-                    	input = input.replace(told + " " ,"");
-                    	
-                    	currentindex = 0;
-                    	// iterating through the list of all active users
-                    	for (String element :names) {
-                    		// the sender's index is saved if the name matches the client's
-                            if (element.equals(name)) {
-                            	senderindex = currentindex;
-                            }
-                            // the index which the recipient's name is held is saved
-                            if (element.equals(told)) {
-                    			desiredindex = currentindex;
-                    		}
-                            currentindex++;
-                        }
-                    	currentindex = 0;
-                    	// iterating through the list of PrintWriters
-                    	// the PrintWriters do not have any such property such as name
-                    	// However, their order is in sync with the order of names list, therefore knowing the index makes this possible
-                    	for (PrintWriter writer : writers) {
-                    		// The part sent specifically to the recipient only
-                            if (desiredindex == currentindex && names.contains(told)) {
-                            	writer.println("MESSAGE " + "Whisper from " + name + ": " + input);
-                            }
-                            // The part sent specifically to the sender only, as the sender should be able to see their own messages too
-                            if (senderindex == currentindex && names.contains(told)) {
-                            	writer.println("MESSAGE " + "Whispered to " + told + ": " + input);
-                            }
-                            // If there is no such recipient, the error message is sent to the sender instead
-                            if (senderindex == currentindex && !names.contains(told)) {
-                            	writer.println("MESSAGE " + "System: Invalid input, name not found");
-                            }
-                            currentindex++;
-                        }
-                    	//desiredindex = 0;
-                    	//senderindex = 0;
-                    }
-                    // List the current users
-                    if (input.toLowerCase().startsWith("/userlist")) {
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + names);
-                        }
-                    }
-                    // List coordinators
-                    if (input.toLowerCase().startsWith("/crdntrlist")) {
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + coordinators);
-                        }
-                    }
-                    // List dethroned users
-                    if (input.toLowerCase().startsWith("/dthlist")) {
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + dethroned);
-                        }
-                    }
-                    // Print the Server's IP address
-                    if (input.toLowerCase().startsWith("/serverip")) {
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + InetAddress.getLocalHost().getHostAddress());
-                        }
-                    }
-                    // Print the Clients' IP address
-                    // Requires the coordinator status
-                    if (input.toLowerCase().startsWith("/clientip") && coordinators.contains(name)) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + ips);
-                        }
-                    } else if (input.toLowerCase().startsWith("/clientip") && !coordinators.contains(name)) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Only coordinators are allowed to do that");
+                        if (!readFrame()) {
+                            break;
                         }
-                    }
-                    // Grant the coordinator status to a certain user
-                    // Only coordinators are allowed to do this
-                    if (input.toLowerCase().startsWith("/bestow") && coordinators.contains(name)) {
-                    	if (names.contains(input.replace("/bestow ",""))) {
-                    		coordinators.add(input.replace("/bestow ",""));
-                    		for (PrintWriter writer : writers) {
-                        		writer.println("MESSAGE " + "System: " + input.replace("/bestow ","") + " is now the coordinator");
-                            }
-                    	}
-                    	else {
-                    		for (PrintWriter writer : writers) {
-                        		writer.println("MESSAGE " + "System: " + "Invalid input, name not found");
-                            }
-                    	}
-                    } else if (input.toLowerCase().startsWith("/bestow") && !coordinators.contains(name)) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Only coordinators are allowed to do that");
+                    } else {
+                        if (!lines.read(input)) {
+                            break;
                         }
-                    }
-                    // Vote to revoke the coordinator status of an user
-                    // This starts the voting process against the targeted user
-                    // This is to allow to dethrone an idling coordinator
-                    // The voting process will only start if there is no other voting process taking place
-                    // In other words, the voters list must be empty
-                    if (input.toLowerCase().startsWith("/dethrone") && yesvoters.isEmpty()) {
-                    	target = input.replace("/dethrone ","");
-                    	if (coordinators.contains(target)) {
-                    		// The first voter can ONLY be added through this command, which counts the voting process as started
-                        	yesvoters.add(name);
-                    		for (PrintWriter writer : writers) {
-                        		writer.println("MESSAGE " + "System: " + "The voting process to dethrone " + target + " has started");
-                            }
-                    		for (PrintWriter writer : writers) {
-                        		writer.println("MESSAGE " + "System: " + "Type /y or /n to cast your vote");
-                            }
-                    		// The user to start the voting process votes automatically yes
-                    		for (PrintWriter writer : writers) {
-                                writer.println("MESSAGE " + "System: " + name + " has voted yes " + "[" + yesvoters.size() + "/" + names.size() + "]");
+                        // Decided before the line is handled, the name line ends the handshake
+                        boolean command = isCommand(lines);
+                        // Everything sent back while handling the line goes out in one batch
+                        out.cork();
+                        try {
+                            if (!onLine(lines)) {
+                                break;
                             }
-                    	} else if (!coordinators.contains(target)) {
-                    		for (PrintWriter writer : writers) {
-                        		writer.println("MESSAGE " + "System: " + "Invalid input, the name not found in coordinator list");
-                            }
-                    	}
-                    } else if (input.toLowerCase().startsWith("/dethrone") && !yesvoters.isEmpty()) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Invalid request, voting already in process");
+                        } finally {
+                            out.uncork();
                         }
+                        // Stop reading for a while if the client is over its limit, its lines wait in the socket
+                        pause(charge(command, lines.length()));
                     }
-                    
-                    // The command to vote for yes
-                    if (input.toLowerCase().startsWith("/y") && !yesvoters.isEmpty() && !yesvoters.contains(name)) {
-                    	yesvoters.add(name);
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + name + " has voted yes " + "[" + yesvoters.size() + "/" + names.size() + "]");
-                        }
-                    // If there is no ongoing voting process, the request is invalid
-                    } else if (input.toLowerCase().startsWith("/y") && yesvoters.isEmpty()) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Invalid request, there is no voting process");
+                }
+            } catch (EOFException e) {
+                // The client hung up, which is how most sessions end
+            } catch (Exception e) {
+                metrics.error(e);
+                // A closed socket is expected once the session was disconnected, anything else is worth a line
+                if (!(e instanceof IOException)) {
+                    System.out.println("Handler error: " + e);
+                }
+            } finally {
+                close();
+                try { socket.close(); } catch (IOException e) {}
+            }
+        }
+
+        // The writer task, writes out everything queued for the client and flushes once per batch
+        // Only the writer task blocks when the client reads slowly, the senders just queue their lines
+        private void drain() {
+            try {
+                do {
+                    Frame frame;
+                    int batched = 0;
+                    while ((frame = out.poll()) != null) {
+                        if (switched(frame)) {
+                            continue;
                         }
-                    // No user may vote twice
-                    } else if (input.toLowerCase().startsWith("/y") && yesvoters.contains(name)) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Invalid request, you have already voted");
+                        frame.writeTo(output, writingBinary, scratch);
+                        metrics.sent(frame.length(writingBinary));
+                        if (++batched == Outbound.BATCH_SIZE) {
+                            flush();
+                            batched = 0;
                         }
                     }
-                    
-                    // The command to vote for no, it functions almost identically to the yes command
-                    // However, the voting process is determined only by the yesvoters list
-                    if (input.toLowerCase().startsWith("/n") && !yesvoters.isEmpty() && !novoters.contains(name)) {
-                    	novoters.add(name);
-                    	for (PrintWriter writer : writers) {
-                            writer.println("MESSAGE " + "System: " + name + " has voted no " + "[" + novoters.size() + "/" + names.size() + "]");
-                        }
-                    } else if (input.toLowerCase().startsWith("/n") && yesvoters.isEmpty()) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Invalid request, there is no voting process");
-                        }
-                    } else if (input.toLowerCase().startsWith("/n") && novoters.contains(name)) {
-                    	for (PrintWriter writer : writers) {
-                    		writer.println("MESSAGE " + "System: " + "Invalid request, you have already voted");
-                        }
+                    if (batched > 0) {
+                        flush();
                     }
-                    // The vote should be concluded, whenever applicable;
-                    concludevoting( );
+                } while (out.rearm());
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+
+        private void flush() throws IOException {
+            output.flush();
+            metrics.writes.increment();
+        }
+
+        // Reads one binary frame into the reused receive buffer and handles it
+        private boolean readFrame() throws Exception {
+            int length = frames.readInt();
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+                return false;
+            }
+            if (length > received.length) {
+                received = new byte[Math.max(length, received.length * 2)];
+            }
+            frames.readFully(received, 0, length);
+            ByteBuffer payload = ByteBuffer.wrap(received, 1, length - 1);
+            boolean command = isCommand(received[0], payload);
+            out.cork();
+            try {
+                if (!onFrame(received[0], payload)) {
+                    return false;
+                }
+            } finally {
+                out.uncork();
+            }
+            pause(charge(command, length));
+            return true;
+        }
+
+        private static void pause(long nanos) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(nanos);
+            }
+        }
+
+        /**
+         * Charges a line or frame the client sent to its chat or command budget. Returns how
+         * many nanoseconds the transport has to stop reading from the client, 0 if it is within
+         * its limits. The client is told whenever it starts being held back.
+         */
+        long charge(boolean command, int size) {
+            long wait = (command ? commandLimit : chatLimit).charge(size);
+            if (wait > 0 && !throttled) {
+                out.send(THROTTLED);
+                metrics.throttled.increment();
+            }
+            throttled = wait > 0;
+            return wait;
+        }
+
+        // Everything but chat counts as a command, the handshake included
+        // Until the name is accepted every line or frame is part of the handshake, in both protocols
+        boolean isCommand(LineDecoder line) {
+            return session == null || line.first() == '/';
+        }
+
+        boolean isCommand(byte opcode, ByteBuffer payload) {
+            if (session != null && opcode == BinaryProtocol.TEXT) {
+                return payload.hasRemaining() && payload.get(payload.position()) == '/';
+            }
+            return true;
+        }
+
+        // Closing the socket makes the blocked read fail, which ends the session through the usual path
+        private void disconnect() {
+            try { socket.close(); } catch (IOException e) {}
+        }
+
+        // Starts the session
+        // Request the client's IP, in a very similar fashion to the name
+        void open() {
+            out.send(GETIP);
+            if (wheel != null && HEARTBEAT > 0) {
+                wheel.schedule(this::checkIdle, HEARTBEAT, TimeUnit.SECONDS);
+            }
+        }
+
+        /**
+         * Run by the timer wheel about once per heartbeat. A client that has been quiet for a
+         * heartbeat is pinged, and one that still has not answered after three is hung up on,
+         * which ends the session through the usual close path. Clients still in the handshake
+         * are not pinged, they just have the same three heartbeats to answer GETIP, which any
+         * client does right away. Only the clients that asked for heartbeats are watched after
+         * that, the others have no way to show they are idle rather than dead, so they are
+         * only let go when their socket fails.
+         */
+        private void checkIdle() {
+            if (closed || ip != null && !heartbeats) {
+                return;
+            }
+            long heartbeat = TimeUnit.SECONDS.toNanos(HEARTBEAT);
+            long idle = System.nanoTime() - lastRead;
+            if (idle >= 3 * heartbeat) {
+                metrics.reaped.increment();
+                hangUp.run();
+                return;
+            }
+            if (idle >= heartbeat && session != null) {
+                out.send(PING);
+            }
+            wheel.schedule(this::checkIdle, heartbeat - idle % heartbeat, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Handles a single line sent by the client. The first line is the client's ip, the
+         * following ones are name submissions until a unique one is accepted, and everything
+         * after that is chat and commands. Returns false once the session should be closed.
+         */
+        boolean onLine(String input) throws Exception {
+            metrics.messagesIn.increment();
+            lastRead = System.nanoTime();
+            return onText(input);
+        }
+
+        /**
+         * The same for the line the decoder just found. Once the session has started the line
+         * is handled as bytes: chat goes into its frame as it was received, and a command only
+         * has its arguments decoded. The handshake lines are few and are decoded whole.
+         */
+        boolean onLine(LineDecoder line) throws Exception {
+            if (session == null || superseded) {
+                return onLine(line.text());
+            }
+            metrics.messagesIn.increment();
+            lastRead = System.nanoTime();
+            return onMessage(line.bytes());
+        }
+
+        // A line, or the text of a NAME or TEXT frame
+        private boolean onText(String input) throws Exception {
+            // The session lives on another connection now, whatever is still read here is stale
+            if (superseded) {
+                return false;
+            }
+            if (ip == null) {
+                // A returning client does not wait for GETIP, it sends "RESUME <token>" followed by its usual answer
+                String resume = null;
+                int space = input.indexOf(' ', 7);
+                if (input.startsWith("RESUME ") && space > 0) {
+                    resume = input.substring(7, space);
+                    input = input.substring(space + 1);
+                }
+                // A client answering PINGs says so first
+                if (input.startsWith(BinaryProtocol.HEARTBEATS + " ")) {
+                    heartbeats = true;
+                    input = input.substring(BinaryProtocol.HEARTBEATS.length() + 1);
+                }
+                // A binary client answers the offer with "BINARY <ip>", and speaks binary from then on
+                if (input.startsWith(BinaryProtocol.OFFER + " ")) {
+                    binary = true;
+                    // GETIP may still be queued, it has to reach the client as the line it was sent as
+                    out.switchToBinary();
+                    input = input.substring(BinaryProtocol.OFFER.length() + 1);
+                }
+                // The ip is only ever displayed, but it is relayed to the other cluster nodes like the name
+                if (!Session.isValidIp(input)) {
+                    return false;
+                }
+                ip = input;
+                // An unknown or expired token just means choosing a name again
+                if (resume == null || !resume(resume)) {
+                    out.send(SUBMITNAME);
+                }
+                return true;
+            }
+
+            // The name may be joining on the link's thread right now, the line waits until it is done
+            if (session == null && claiming) {
+                claimLock.lock();
+                claimLock.unlock();
+            }
+
+            // Keep requesting a name until we get a unique one.
+            if (session == null) {
+                if (claiming) {
+                    return true;
+                }
+                // Empty, too long or holding control characters, the name is asked again like a taken one
+                if (!Session.isValidName(input)) {
+                    out.send(SUBMITNAME);
+                    return true;
+                }
+                Session candidate = new Session(input, ip, out);
+                Cluster peers = cluster;
+                if (peers == null) {
+                    // Registering is atomic, so no lock is needed to reserve the name
+                    claimed(candidate, sessions.register(candidate));
+                } else {
+                    // The cluster leader decides, its answer may arrive on another thread
+                    claiming = true;
+                    peers.claim(candidate, granted -> claimed(candidate, granted));
+                }
+                return true;
+            }
+
+            return onMessage(input);
+        }
+
+        // The answer to a name submission, the session starts if the name was free
+        private void claimed(Session candidate, boolean granted) {
+            if (!granted) {
+                claiming = false;
+                out.send(SUBMITNAME);
+                return;
+            }
+            claimLock.lock();
+            try {
+                // The client may have left while the name was being claimed, close did not see the session then
+                if (!closed) {
+                    name = candidate.name;
+                    Room lobby = join(candidate);
+                    // Only published once joined and both at once, so close leaves the room the session is in
+                    session = candidate;
+                    room = lobby;
+                    claiming = false;
+                    live();
+                    return;
                 }
-            } catch (Exception e) {
-                //System.out.println(e);
             } finally {
-                if (out != null) {
-                    writers.remove(out);
+                claimLock.unlock();
+            }
+            sessions.remove(candidate);
+            if (cluster != null) {
+                cluster.left(candidate.name);
+            }
+        }
+
+        /**
+         * Called by the writer task for every frame it polls. Returns true for the marker of
+         * the switch to binary, which is not written, the frames after it are encoded as binary.
+         */
+        boolean switched(Frame frame) {
+            if (frame != Outbound.BINARY) {
+                return false;
+            }
+            writingBinary = true;
+            return true;
+        }
+
+        // Which encoding the writer task is at, only the writer task may look at it
+        boolean writesBinary() {
+            return writingBinary;
+        }
+
+        // Whether the client has switched to the binary protocol, the other transports read frames from then on
+        boolean isBinary() {
+            return binary;
+        }
+
+        /**
+         * Handles a single binary frame sent by the client. The payload is a view over the receive
+         * buffer and is only decoded when the opcode needs text. Returns false once the session
+         * should be closed.
+         */
+        boolean onFrame(byte opcode, ByteBuffer payload) throws Exception {
+            metrics.messagesIn.increment();
+            lastRead = System.nanoTime();
+            switch (opcode) {
+                // Only there to show the client is alive, which it just did
+                case BinaryProtocol.PONG:
+                    return true;
+                case BinaryProtocol.NAME:
+                case BinaryProtocol.TEXT:
+                    return onText(BinaryProtocol.text(payload));
+                case BinaryProtocol.QUIT:
+                    quitting = true;
+                    return false;
+                default:
+                    break;
+            }
+            // The other frames are only valid once the name has been accepted
+            if (session == null) {
+                return true;
+            }
+            if (opcode == BinaryProtocol.WHISPER) {
+                int separator = BinaryProtocol.separator(payload);
+                if (separator < 0) {
+                    return true;
+                }
+                ByteBuffer recipient = payload.duplicate();
+                recipient.limit(separator);
+                ByteBuffer message = payload.duplicate();
+                message.position(separator + 1);
+                String text = BinaryProtocol.text(message);
+                if (!Frame.isSingleLine(text)) {
+                    out.send(MULTILINE);
+                    return true;
+                }
+                whisper(BinaryProtocol.text(recipient), text);
+            } else if (opcode == BinaryProtocol.VOTE && payload.hasRemaining()) {
+                boolean yes = payload.get(payload.position()) == 'y';
+                // Votes are shown to the room the same way the /y and /n commands are
+                broadcast(room.name, name + ": " + (yes ? "/y" : "/n"));
+                room.coordination.vote(name, yes);
+            }
+            // Unknown opcodes are ignored, newer clients may know more of them
+            return true;
+        }
+
+        // Chat and commands, from either protocol
+        private boolean onMessage(String input) throws Exception {
+            // A binary frame can hold line breaks, which would reach the line clients as lines of their own
+            if (!Frame.isSingleLine(input)) {
+                out.send(MULTILINE);
+                return true;
+            }
+            // Normal messages take the fast path, a line that does not start with a slash is never matched against the commands
+            if (input.isEmpty() || input.charAt(0) != '/') {
+                broadcast(room.name, name + ": " + input);
+            } else {
+                CommandTable.Entry<Handler> command = COMMANDS.lookup(input);
+                // Unknown commands are broadcasted like any other message
+                // Most known commands are broadcasted too, UNLESS they are private like /whisper
+                if (command == null || command.echoed) {
+                    broadcast(room.name, name + ": " + input);
                 }
-                if (name != null) {
-                    System.out.println(name + " is leaving");
-                    for (PrintWriter writer : writers) {
-                        writer.println("MESSAGE " + name + " has left");
+                if (command != null) {
+                    long start = System.nanoTime();
+                    boolean keep = command.command.run(this, CommandTable.arguments(input));
+                    command.latency.record(System.nanoTime() - start);
+                    if (!keep) {
+                        return false;
                     }
-                    // Whenever a user leaves, their name is removed from all the lists
-                    // With the exception of dethroned list, as users should not be able to regain the qualification to be a coordinator simply by rejoining
-                    names.remove(name);
-                    coordinators.remove(name);
-                    yesvoters.remove(name);
-                    novoters.remove(name);
                 }
-                try { socket.close(); } catch (IOException e) {}
             }
+            return true;
+        }
+
+        // The same for a line still in UTF-8, the text of a chat line is never decoded
+        private boolean onMessage(ByteBuffer input) throws Exception {
+            if (!Frame.isSingleLine(input)) {
+                out.send(MULTILINE);
+                return true;
+            }
+            if (!input.hasRemaining() || input.get(input.position()) != '/') {
+                broadcast(room.name, Frame.message(said(), input));
+            } else {
+                CommandTable.Entry<Handler> command = COMMANDS.lookup(input);
+                if (command == null || command.echoed) {
+                    broadcast(room.name, Frame.message(said(), input));
+                }
+                if (command != null) {
+                    long start = System.nanoTime();
+                    boolean keep = command.command.run(this, CommandTable.arguments(input));
+                    command.latency.record(System.nanoTime() - start);
+                    if (!keep) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        // "MESSAGE <name>: " in UTF-8, encoded once for every chat line of the session
+        private byte[] said() {
+            byte[] prefix = said;
+            if (prefix == null) {
+                prefix = ("MESSAGE " + name + ": ").getBytes(StandardCharsets.UTF_8);
+                said = prefix;
+            }
+            return prefix;
+        }
+
+        // Executable commands, mainly for debugging purposes
+        // Every command gets the text following its name, and returns false only when the session should end
+        static final CommandTable<Handler> COMMANDS = new CommandTable<Handler>()
+            .add("quit", false, Handler::quit)
+            .add("help", true, Handler::help)
+            .add("whisper", false, Handler::whisper)
+            .add("join", false, Handler::joinroom)
+            .add("leave", false, Handler::leaveroom)
+            .add("rooms", false, Handler::rooms)
+            .add("userlist", false, Handler::userlist)
+            .add("crdntrlist", false, Handler::crdntrlist)
+            .add("dthlist", false, Handler::dthlist)
+            .add("serverip", true, Handler::serverip)
+            .add("clientip", true, Handler::clientip)
+            .add("bestow", true, Handler::bestow)
+            .add("dethrone", true, Handler::dethrone)
+            .add("y", true, Handler::voteyes)
+            .add("n", true, Handler::voteno)
+            .add("stats", false, Handler::stats)
+            .add("pong", false, Handler::pong);
+
+        // The quit command, shuts down the client
+        private boolean quit(String args) {
+            quitting = true;
+            return false;
+        }
+
+        // A line client's answer to PING, reading it was all that was needed
+        private boolean pong(String args) {
+            return true;
+        }
+
+        // The help command, lists down all the commands
+        private boolean help(String args) {
+            for (Frame line : HELP) {
+                broadcast(room.name, line);
+            }
+            return true;
+        }
+
+        // Send a private message to a user
+        // The first word is the recipient's name, the rest is the message
+        private boolean whisper(String args) {
+            int space = args.indexOf(' ');
+            // "told" is the recepient of the private message
+            String told = space < 0 ? args : args.substring(0, space);
+            String message = space < 0 ? "" : args.substring(space + 1);
+            whisper(told, message);
+            return true;
+        }
+
+        private void whisper(String told, String message) {
+            // The recipient is looked up directly by name in the registry
+            Session recipient = sessions.get(told);
+            if (recipient != null) {
+            	// The part sent specifically to the recipient only, through their node if they are on another one
+            	if (recipient.isLocal()) {
+            	    recipient.out.send(Frame.message("Whisper from " + name + ": " + message));
+            	} else {
+            	    cluster.whisper(recipient, name, message);
+            	}
+            	// The part sent specifically to the sender only, as the sender should be able to see their own messages too
+            	out.send(Frame.message("Whispered to " + told + ": " + message));
+            } else {
+            	// If there is no such recipient, the error message is sent to the sender instead
+            	out.send(Frame.message("System: Invalid input, name not found"));
+            }
+        }
+
+        // Move to another room, the room is created by whoever joins it first
+        private boolean joinroom(String args) {
+            if (!Rooms.isValidName(args)) {
+                out.send(Frame.message("System: Invalid input, a room name is a single word"));
+            } else if (args.equals(room.name)) {
+                out.send(Frame.message("System: You are already in " + args));
+            } else {
+                move(args);
+            }
+            return true;
+        }
+
+        // Go back to the lobby
+        private boolean leaveroom(String args) {
+            if (room.name.equals(Room.LOBBY)) {
+                out.send(Frame.message("System: You are already in the lobby"));
+            } else {
+                move(Room.LOBBY);
+            }
+            return true;
+        }
+
+        // List the rooms with how many users are in them, to the one asking only
+        private boolean rooms(String args) {
+            StringBuilder list = new StringBuilder("System: Rooms:");
+            for (Map.Entry<String, List<String>> entry : sessions.rooms().entrySet()) {
+                list.append(' ').append(entry.getKey()).append(" (").append(entry.getValue().size()).append(')');
+            }
+            out.send(Frame.message(list.toString()));
+            return true;
+        }
+
+        // Leaves the current room for the given one, the coordinations of both rooms hear about it
+        private void move(String destination) {
+            Room previous = room;
+            broadcast(previous.name, name + " has left " + previous.name);
+            previous.exit(session);
+            previous.coordination.leave(name);
+            Room next = rooms.occupy(destination);
+            rooms.vacate(previous.name);
+            room = next;
+            session.setRoom(next.name);
+            if (cluster != null) {
+                cluster.moved(session);
+            }
+            next.enter(session);
+            broadcast(next.name, name + " has joined " + next.name);
+            next.coordination.join(name);
+        }
+
+        // List the current users of the room, or what changed since the version the client already has
+        private boolean userlist(String args) {
+            long since = -1;
+            if (!args.isEmpty()) {
+                try {
+                    since = Long.parseLong(args);
+                } catch (NumberFormatException e) {
+                    out.send(Frame.message("System: " + "Invalid input, the version must be a number"));
+                    return true;
+                }
+            }
+            room.coordination.listMembers(name, since);
+            return true;
+        }
+
+        // List coordinators
+        private boolean crdntrlist(String args) {
+            room.coordination.listCoordinators(name);
+            return true;
+        }
+
+        // List dethroned users
+        private boolean dthlist(String args) {
+            room.coordination.listDethroned(name);
+            return true;
+        }
+
+        // Print the Server's IP address
+        private boolean serverip(String args) throws UnknownHostException {
+            broadcast(room.name, "System: " + InetAddress.getLocalHost().getHostAddress());
+            return true;
+        }
+
+        // Print the Clients' IP address
+        // Requires the coordinator status
+        private boolean clientip(String args) {
+            if (session.isCoordinator()) {
+                broadcast(room.name, "System: " + sessions.ips());
+            } else {
+                broadcast(room.name, "System: " + "Only coordinators are allowed to do that");
+            }
+            return true;
+        }
+
+        // Show the server's counters and latencies, to the one asking only
+        // Requires the coordinator status
+        private boolean stats(String args) {
+            if (!session.isCoordinator()) {
+                out.send(Frame.message("System: " + "Only coordinators are allowed to do that"));
+                return true;
+            }
+            for (String line : metrics.report()) {
+                out.send(Frame.message("System: " + line));
+            }
+            return true;
+        }
+
+        // Grant the coordinator status to a certain user
+        // Only coordinators are allowed to do this, which is checked along with the other role changes
+        private boolean bestow(String nominee) {
+            room.coordination.bestow(name, nominee);
+            return true;
+        }
+
+        // Vote to revoke the coordinator status of an user
+        // This starts the voting process against the targeted user
+        // This is to allow to dethrone an idling coordinator
+        private boolean dethrone(String nominee) {
+            room.coordination.dethrone(name, nominee);
+            return true;
+        }
+
+        // The command to vote for yes
+        private boolean voteyes(String args) {
+            room.coordination.vote(name, true);
+            return true;
+        }
+
+        // The command to vote for no, it functions almost identically to the yes command
+        private boolean voteno(String args) {
+            room.coordination.vote(name, false);
+            return true;
+        }
+
+        // Now that a successful name has been chosen, the session with the socket's print writer is
+        // in the registry, so this client receives broadcast messages.
+        // But BEFORE THAT, let everyone else know that the new person has joined!
+        // Returns the lobby, the caller publishes it along with the session
+        private Room join(Session joined) {
+            // The session was registered first, so that the "has joined" message would be visible to themselves
+            out.send(Frame.line("NAMEACCEPTED " + name));
+            metrics.handshake.record(System.nanoTime() - accepted);
+            issueToken(joined);
+            // The recent history, straight from the journal's mapped segments
+            if (journal != null) {
+                for (Frame frame : journal.recent()) {
+                    out.send(frame);
+                }
+            }
+            // Everybody starts in the lobby
+            Room lobby = rooms.occupy(Room.LOBBY);
+            lobby.enter(joined);
+            // The welcome message
+            broadcast(lobby.name, "Welcome " + name + "!");
+            broadcast(lobby.name, "We hope you brought pizza");
+            broadcast(lobby.name, "Type /help to list down all the commands");
+            
+            // If the naming process is successful, coordinator check occurs
+            // Check if there's a coordinator, if not, assign
+            lobby.coordination.join(name);
+            return lobby;
+        }
+
+        // Sent along with NAMEACCEPTED, the client presents it to take the session over after losing the connection
+        private void issueToken(Session holder) {
+            if (GRACE <= 0) {
+                return;
+            }
+            byte[] random = new byte[16];
+            tokens.nextBytes(random);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+            holder.setTokenDigest(digest(token));
+            out.send(Frame.line("RESUMETOKEN " + token));
+        }
+
+        // The server only keeps the SHA-256 of a token, what it keeps or saves cannot be presented to resume
+        private static String digest(String token) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+                return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform has SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Takes over the session parked under the token, in one round trip: the name, the room
+         * and the role come back as they were, then everything sent to the user while they
+         * were away. The old connection may not have been noticed as dead yet, in which case it
+         * is hung up on and its session is taken over all the same. Returns false if no session
+         * has the token.
+         */
+        private boolean resume(String resumeToken) {
+            String resumeDigest = digest(resumeToken);
+            Handler previous = parked.remove(resumeDigest);
+            if (previous == null) {
+                previous = supersede(resumeDigest);
+            }
+            if (previous == null) {
+                return false;
+            }
+            name = previous.name;
+            session = new Session(name, ip, out);
+            room = previous.room;
+            out.send(Frame.line("NAMEACCEPTED " + name));
+            metrics.handshake.record(System.nanoTime() - accepted);
+            metrics.resumed.increment();
+            issueToken(session);
+            room.resume(previous.session, session);
+            live();
+            System.out.println(name + " is back");
+            return true;
+        }
+
+        // The session can be taken over by a new connection from now on
+        private void live() {
+            String liveToken = session.tokenDigest();
+            if (liveToken != null) {
+                listed = true;
+                live.put(liveToken, this);
+            }
+        }
+
+        /**
+         * Takes the session away from a connection that still looks alive, which is hung up on
+         * without being parked. Its queue is held like a parked one until the room hands it over.
+         * Returns null if no connection has the token, or if it was parked in the meantime.
+         */
+        private static Handler supersede(String liveToken) {
+            Handler stale = live.remove(liveToken);
+            if (stale == null) {
+                // The old connection may have closed and parked the session since
+                return parked.remove(liveToken);
+            }
+            stale.superseded = true;
+            stale.out.park();
+            stale.hangUp.run();
+            System.out.println(stale.name + " came back on a new connection, the old one is dropped");
+            return stale;
+        }
+
+        // Ends the session, whichever transport noticed it first
+        void close() {
+            // Waits for a name being joined on the link's thread, its session and room are set after that
+            claimLock.lock();
+            try {
+                closed = true;
+            } finally {
+                claimLock.unlock();
+            }
+            // Whoever removes the session from the live ones owns it, a resume may have got there first
+            String liveToken = listed ? session.tokenDigest() : null;
+            if (listed && !live.remove(liveToken, this)) {
+                return;
+            }
+            Room current = room;
+            // Unless the client said goodbye or was evicted for not keeping up, the session waits for it to come back for a while
+            if (session != null && current != null && session.tokenDigest() != null && !quitting && !out.evicted()) {
+                park();
+                System.out.println(name + " dropped, their session is kept for " + GRACE + "s");
+                return;
+            }
+            out.close();
+            if (out.dropped() > 0) {
+                System.out.println((name != null ? name : ip) + " could not keep up, " + out.dropped() + " messages were dropped");
+            }
+            if (session != null && current != null) {
+                leave(current);
+            }
+        }
+
+        // The client is gone but its session stays, name, room, role and votes included, until the grace window is over
+        private void park() {
+            out.park();
+            String parkedToken = session.tokenDigest();
+            parked.put(parkedToken, this);
+            wheel.schedule(() -> expire(parkedToken), GRACE, TimeUnit.SECONDS);
+        }
+
+        // Nobody came back for the session, the user leaves for good
+        private void expire(String parkedToken) {
+            if (parked.remove(parkedToken, this)) {
+                out.close();
+                leave(room);
+            }
+        }
+
+        private void leave(Room current) {
+            // Whenever a user leaves, their session is removed from the registry, which drops their ip and roles too
+            // Their votes are dropped by the coordination, which also finds a new coordinator if needed
+            sessions.remove(session);
+            if (cluster != null) {
+                cluster.left(name);
+            }
+            System.out.println(name + " is leaving");
+            current.exit(session);
+            broadcast(current.name, name + " has left");
+            current.coordination.leave(name);
+            rooms.vacate(current.name);
         }
     }
 }
@@ -0,0 +1,596 @@
+package DemoThree;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Cluster mode, several servers sharing one chat room. The nodes are a static list given at
+ * startup with -Dchat.cluster=host:port,host:port,... and every server is told its own
+ * position in that list with -Dchat.cluster.node. Each pair of nodes keeps one TCP link,
+ * dialled by the node with the lower number, over which lines such as
+ *
+ *   BROADCAST<tab>lobby<tab>MESSAGE alice: hi
+ *
+ * are exchanged. A broadcast is relayed once per node and fanned out there to the room it
+ * was sent in, a whisper goes only to the node of its recipient.
+ *
+ * The live node with the lowest number is the leader. It decides which names are free, so
+ * screen names stay unique across the cluster, and it runs the only Coordination of every
+ * room that counts: the other nodes forward their joins, leaves, bestows and votes to it,
+ * and it tells everybody about role changes. Every node knows which room each user is in.
+ * When the leader goes away the next node takes over from the users it knows about, a vote
+ * which was in progress is lost.
+ *
+ * Links are watched with a heartbeat, a node not heard from for three of them is taken for
+ * dead and its users leave the room.
+ *
+ * A node only listens on its own address from the list and dials from it, and a link is
+ * only taken from the address listed for the node it claims to be. Anybody else could
+ * otherwise forge users, roles and lines for the clients.
+ */
+final class Cluster {
+
+    private static final long HEARTBEAT = 1000;
+    private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(3 * HEARTBEAT);
+    // Lines waiting to be written to one peer, a peer this far behind is disconnected and dialled again
+    private static final int QUEUE = 64 * 1024;
+
+    private final int self;
+    private final InetSocketAddress[] nodes;
+    private final SessionRegistry sessions;
+    private final Rooms rooms;
+
+    // The link to every other node, null while it is down
+    private final AtomicReferenceArray<Link> links;
+    private volatile int leader;
+    private final ReentrantLock electionLock = new ReentrantLock();
+
+    // Name claims sent to the leader and not answered yet
+    private final AtomicLong claimNumbers = new AtomicLong();
+    private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> daemon(task, "chat-cluster"));
+    // Reads and writes the links
+    private final ExecutorService io = Executors.newCachedThreadPool(task -> daemon(task, "chat-cluster-link"));
+
+    private Cluster(int self, InetSocketAddress[] nodes, SessionRegistry sessions, Rooms rooms) {
+        this.self = self;
+        this.nodes = nodes;
+        this.sessions = sessions;
+        this.rooms = rooms;
+        this.links = new AtomicReferenceArray<>(nodes.length);
+        this.leader = self;
+    }
+
+    /**
+     * The cluster described by -Dchat.cluster and -Dchat.cluster.node, or null if the server
+     * runs on its own.
+     */
+    static Cluster fromProperties(SessionRegistry sessions, Rooms rooms) {
+        String list = System.getProperty("chat.cluster");
+        if (list == null || list.trim().isEmpty()) {
+            return null;
+        }
+        String[] entries = list.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int colon = entry.lastIndexOf(':');
+            nodes[i] = new InetSocketAddress(entry.substring(0, colon), Integer.parseInt(entry.substring(colon + 1)));
+        }
+        int self = Integer.getInteger("chat.cluster.node", 0);
+        if (self < 0 || self >= nodes.length) {
+            throw new IllegalArgumentException("chat.cluster.node must be between 0 and " + (nodes.length - 1));
+        }
+        return new Cluster(self, nodes, sessions, rooms);
+    }
+
+    /**
+     * Starts listening for the other nodes and dialling them, then gives them a couple of
+     * heartbeats to show up, so that a node joining a running cluster does not start out
+     * believing it is the leader.
+     */
+    void start() throws IOException, InterruptedException {
+        ServerSocket listener = new ServerSocket(nodes[self].getPort(), 50, nodes[self].getAddress());
+        io.execute(() -> accept(listener));
+        timer.scheduleWithFixedDelay(this::tick, 0, HEARTBEAT, TimeUnit.MILLISECONDS);
+        Thread.sleep(2 * HEARTBEAT);
+        System.out.println("Cluster node " + self + " of " + nodes.length + ", node " + leader + " leads");
+    }
+
+    boolean isLeader() {
+        return leader == self;
+    }
+
+    /**
+     * Claims a screen name for a local session. The leader registers it right away, the other
+     * nodes ask the leader first, so the answer may come later and on another thread. While
+     * the link to the leader is down nobody can vouch for the name, so it is refused.
+     */
+    void claim(Session candidate, Consumer<Boolean> done) {
+        int current = leader;
+        if (current == self) {
+            boolean granted = sessions.register(candidate);
+            if (granted) {
+                sendAll(Frame.line(user(candidate)), -1);
+            }
+            done.accept(granted);
+            return;
+        }
+        Link link = links.get(current);
+        // Granting it locally could give the same name out on two nodes, the client asks again instead
+        if (link == null) {
+            System.out.println("Refusing the name " + candidate.name + ", there is no link to the leader node " + current);
+            done.accept(false);
+            return;
+        }
+        long number = claimNumbers.incrementAndGet();
+        claims.put(number, new Claim(candidate, current, done));
+        link.send(Frame.line("CLAIM\t" + number + "\t" + candidate.name + "\t" + candidate.ip));
+    }
+
+    // A local user left, the other nodes forget about them
+    void left(String name) {
+        sendAll(Frame.line("LEFT\t" + name), -1);
+    }
+
+    // Relays a broadcast to every other node, encoded once for all of them
+    void relay(String room, Frame frame) {
+        sendAll(Frame.line("BROADCAST\t" + room + "\t" + frame), -1);
+    }
+
+    // A local user moved to another room
+    void moved(Session session) {
+        sendAll(Frame.line("MOVE\t" + session.name + "\t" + session.room()), -1);
+    }
+
+    // Relays a whisper to the node of its recipient
+    void whisper(Session recipient, String from, String message) {
+        Link link = links.get(recipient.node);
+        if (link != null) {
+            link.send(Frame.line("WHISPER\t" + from + "\t" + recipient.name + "\t" + message));
+        }
+    }
+
+    // Sends a frame to a user connected to another node, such as the reply to a request the leader handled
+    void tell(Session recipient, Frame frame) {
+        Link link = links.get(recipient.node);
+        if (link != null) {
+            link.send(Frame.line("TELL\t" + recipient.name + "\t" + frame));
+        }
+    }
+
+    // Tells every node about a coordinator role granted or revoked by the leader's coordination of a room
+    void role(String room, String name, boolean coordinator) {
+        sendAll(Frame.line("ROLE\t" + room + "\t" + name + "\t" + (coordinator ? "1" : "0")), -1);
+    }
+
+    /**
+     * Sends a coordination event to the leader. Returns false if this node is the leader, or
+     * has no link to it, in which case the event is applied locally.
+     */
+    boolean forward(String room, String event, String by, String argument) {
+        int current = leader;
+        Link link = current == self ? null : links.get(current);
+        if (link == null) {
+            return false;
+        }
+        link.send(Frame.line("EVENT\t" + room + "\t" + event + "\t" + by + "\t" + argument));
+        return true;
+    }
+
+    private void sendAll(Frame frame, int except) {
+        for (int node = 0; node < nodes.length; node++) {
+            Link link = links.get(node);
+            if (link != null && node != except) {
+                link.send(frame);
+            }
+        }
+    }
+
+    // Announces a user, with the node they are connected to, which is not always the node telling about them
+    private String user(Session session) {
+        String coordinates = session.coordinates();
+        return "USER\t" + (session.isLocal() ? self : session.node) + "\t" + session.name + "\t" + session.ip
+                + "\t" + session.room() + "\t" + (coordinates != null ? coordinates : "");
+    }
+
+    // Handles a line from another node
+    private void receive(Link link, String line) {
+        String[] parts = line.split("\t", 6);
+        switch (parts[0]) {
+            case "BROADCAST": {
+                // Only fanned out here, relaying it again would echo it around the cluster
+                String[] broadcast = line.split("\t", 3);
+                ChatServer.deliver(broadcast[1], Frame.line(broadcast[2]));
+                break;
+            }
+            case "WHISPER": {
+                // The message is the rest of the line, tabs included
+                String[] whisper = line.split("\t", 4);
+                Session recipient = sessions.get(whisper[2]);
+                if (recipient != null && recipient.isLocal()) {
+                    recipient.out.send(Frame.message("Whisper from " + whisper[1] + ": " + whisper[3]));
+                }
+                break;
+            }
+            case "TELL": {
+                String[] tell = line.split("\t", 3);
+                Session recipient = sessions.get(tell[1]);
+                if (recipient != null && recipient.isLocal()) {
+                    recipient.out.send(Frame.line(tell[2]));
+                }
+                break;
+            }
+            case "USER": {
+                Session session = new Session(parts[2], parts[3], Integer.parseInt(parts[1]));
+                session.setRoom(parts[4]);
+                if (!parts[5].isEmpty()) {
+                    session.grantCoordinator(parts[5]);
+                }
+                if (session.node != self && sessions.register(session)) {
+                    Room room = rooms.occupy(session.room());
+                    if (isLeader()) {
+                        room.coordination.join(session.name);
+                    }
+                }
+                break;
+            }
+            case "MOVE": {
+                Session session = sessions.get(parts[1]);
+                if (session != null && session.node == link.node) {
+                    String previous = session.room();
+                    session.setRoom(parts[2]);
+                    rooms.occupy(parts[2]);
+                    rooms.vacate(previous);
+                }
+                break;
+            }
+            case "LEFT": {
+                Session session = sessions.get(parts[1]);
+                if (session != null && session.node == link.node && sessions.remove(session)) {
+                    rooms.vacate(session.room());
+                }
+                break;
+            }
+            case "CLAIM":
+                claimed(link, parts[1], parts[2], parts[3]);
+                break;
+            case "GRANT":
+            case "REFUSE": {
+                Claim claim = claims.remove(Long.parseLong(parts[1]));
+                if (claim == null) {
+                    break;
+                }
+                boolean granted = parts[0].equals("GRANT") && sessions.register(claim.candidate);
+                if (parts[0].equals("GRANT") && !granted) {
+                    // Somebody got the name in the meantime after all, give it back
+                    left(claim.candidate.name);
+                }
+                claim.done.accept(granted);
+                break;
+            }
+            case "ROLE": {
+                Session session = sessions.get(parts[2]);
+                if (session == null) {
+                    break;
+                }
+                if (parts[3].equals("1")) {
+                    session.grantCoordinator(parts[1]);
+                } else {
+                    session.revokeCoordinator(parts[1]);
+                }
+                break;
+            }
+            case "EVENT": {
+                // The argument is what the user typed, so it is the rest of the line as well
+                String[] event = line.split("\t", 5);
+                // The user the event is about is in the room, unless it was left meanwhile
+                Room room = rooms.find(event[1]);
+                if (room != null) {
+                    event(room.coordination, event[2], event[3], event[4]);
+                }
+                break;
+            }
+            default:
+                // PING, only there to keep the link marked as alive
+                break;
+        }
+    }
+
+    // The leader's side of a name claim
+    private void claimed(Link link, String number, String name, String ip) {
+        Session session = new Session(name, ip, link.node);
+        if (isLeader() && sessions.register(session)) {
+            rooms.occupy(session.room());
+            link.send(Frame.line("GRANT\t" + number));
+            sendAll(Frame.line(user(session)), link.node);
+        } else {
+            link.send(Frame.line("REFUSE\t" + number));
+        }
+    }
+
+    // A coordination event forwarded by another node, passed on again if the leader has changed since
+    private void event(Coordination coordination, String event, String by, String argument) {
+        switch (event) {
+            case "join":
+                coordination.join(by);
+                break;
+            case "leave":
+                coordination.leave(by);
+                break;
+            case "bestow":
+                coordination.bestow(by, argument);
+                break;
+            case "dethrone":
+                coordination.dethrone(by, argument);
+                break;
+            case "vote":
+                coordination.vote(by, argument.equals("y"));
+                break;
+            case "userlist":
+                coordination.listMembers(by, Long.parseLong(argument));
+                break;
+            case "dthlist":
+                coordination.listDethroned(by);
+                break;
+            case "crdntrlist":
+                coordination.listCoordinators(by);
+                break;
+            default:
+                break;
+        }
+    }
+
+    // The heartbeat, dials the nodes which are down and drops the ones which went quiet
+    private void tick() {
+        long now = System.nanoTime();
+        for (int node = 0; node < nodes.length; node++) {
+            if (node == self) {
+                continue;
+            }
+            Link link = links.get(node);
+            if (link == null) {
+                // Only the lower numbered node of a pair dials, so there is a single link between them
+                if (node > self) {
+                    dial(node);
+                }
+            } else if (now - link.heard > TIMEOUT) {
+                link.close();
+            } else {
+                link.send(Frame.line("PING"));
+            }
+        }
+    }
+
+    private void dial(int node) {
+        Socket socket = new Socket();
+        try {
+            // The other node checks that the link comes from our address in the list
+            socket.bind(new InetSocketAddress(nodes[self].getAddress(), 0));
+            socket.connect(nodes[node], (int) HEARTBEAT / 2);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Link link = new Link(node, socket, in);
+            link.send(Frame.line("HELLO\t" + self));
+            up(link);
+        } catch (IOException e) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // Takes the links dialled by the lower numbered nodes, each introduces itself with HELLO
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                io.execute(() -> {
+                    try {
+                        socket.setSoTimeout((int) HEARTBEAT * 3);
+                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                        String hello = in.readLine();
+                        int node = hello != null && hello.startsWith("HELLO\t") ? Integer.parseInt(hello.substring(6)) : -1;
+                        if (node < 0 || node >= nodes.length || node == self) {
+                            socket.close();
+                            return;
+                        }
+                        if (!socket.getInetAddress().equals(nodes[node].getAddress())) {
+                            System.out.println("Cluster link from " + socket.getInetAddress().getHostAddress()
+                                    + " refused, node " + node + " is at " + nodes[node].getAddress().getHostAddress());
+                            socket.close();
+                            return;
+                        }
+                        socket.setSoTimeout(0);
+                        up(new Link(node, socket, in));
+                    } catch (IOException | NumberFormatException e) {
+                        try { socket.close(); } catch (IOException ignored) {}
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Cluster listener error: " + e);
+                return;
+            }
+        }
+    }
+
+    // A link came up, it replaces any older one to the same node
+    private void up(Link link) {
+        Link old = links.getAndSet(link.node, link);
+        if (old != null) {
+            old.close();
+        }
+        // The new node learns about our users straight from us
+        for (Session session : sessions.all()) {
+            link.send(Frame.line(user(session)));
+        }
+        io.execute(link::read);
+        System.out.println("Cluster node " + link.node + " is up");
+        elect();
+    }
+
+    // A link went down, the node's users leave the room
+    private void down(Link link) {
+        if (!links.compareAndSet(link.node, link, null)) {
+            return;
+        }
+        System.out.println("Cluster node " + link.node + " is down");
+        List<Session> gone = sessions.removeNode(link.node);
+        // Claims waiting on that node will never be answered
+        for (Long number : claims.keySet()) {
+            Claim claim = claims.get(number);
+            if (claim != null && claim.leader == link.node && claims.remove(number, claim)) {
+                claim.done.accept(false);
+            }
+        }
+        elect();
+        for (Session session : gone) {
+            Room room = rooms.find(session.room());
+            if (isLeader() && room != null) {
+                ChatServer.broadcast(session.room(), session.name + " has left");
+                room.coordination.leave(session.name);
+            }
+            rooms.vacate(session.room());
+        }
+    }
+
+    // The lowest numbered live node leads, a node which just became the leader rebuilds the coordination from its registry
+    private void elect() {
+        electionLock.lock();
+        try {
+            int lowest = self;
+            for (int node = 0; node < self; node++) {
+                if (links.get(node) != null) {
+                    lowest = node;
+                    break;
+                }
+            }
+            if (lowest == leader) {
+                return;
+            }
+            leader = lowest;
+            System.out.println("Cluster node " + lowest + " now leads");
+            if (lowest == self) {
+                // Every room is started over, including the ones nobody is in anymore
+                Map<String, List<String>> members = sessions.rooms();
+                for (Room room : rooms.all()) {
+                    members.putIfAbsent(room.name, Collections.emptyList());
+                }
+                for (Map.Entry<String, List<String>> entry : members.entrySet()) {
+                    Room room = rooms.find(entry.getKey());
+                    if (room != null) {
+                        room.coordination.resync(entry.getValue());
+                    }
+                }
+            }
+        } finally {
+            electionLock.unlock();
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // A name claim waiting for the leader's answer
+    private static final class Claim {
+        final Session candidate;
+        final int leader;
+        final Consumer<Boolean> done;
+
+        Claim(Session candidate, int leader, Consumer<Boolean> done) {
+            this.candidate = candidate;
+            this.leader = leader;
+            this.done = done;
+        }
+    }
+
+    /**
+     * The link to one other node. Lines for it are queued in an Outbound and written by a
+     * writer task, the same way lines reach the clients, and its own thread reads what the
+     * other node sends.
+     */
+    private final class Link {
+        final int node;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final OutputStream output;
+        private final byte[] scratch = new byte[Frame.CHUNK];
+        private final Outbound out;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        volatile long heard = System.nanoTime();
+
+        Link(int node, Socket socket, BufferedReader in) throws IOException {
+            this.node = node;
+            this.socket = socket;
+            this.in = in;
+            this.output = new BufferedOutputStream(socket.getOutputStream());
+            this.out = new Outbound(QUEUE, Outbound.OverflowPolicy.DISCONNECT, () -> io.execute(this::drain), this::close);
+            socket.setTcpNoDelay(true);
+        }
+
+        void send(Frame frame) {
+            out.send(frame);
+        }
+
+        private void drain() {
+            try {
+                do {
+                    Frame frame;
+                    while ((frame = out.poll()) != null) {
+                        frame.writeTo(output, scratch);
+                    }
+                    output.flush();
+                } while (out.rearm());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void read() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    heard = System.nanoTime();
+                    receive(this, line);
+                }
+            } catch (IOException e) {
+                // The node went away, or the link was replaced
+            } catch (RuntimeException e) {
+                ChatServer.metrics.error(e);
+                System.out.println("Cluster error: " + e);
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            out.close();
+            try { socket.close(); } catch (IOException e) {}
+            down(this);
+        }
+    }
+}
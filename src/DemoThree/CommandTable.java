@@ -0,0 +1,195 @@
+package DemoThree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The chat commands, indexed by verb. An input line such as "/whisper bob hi" is matched
+ * on its verb only ("whisper"), case insensitively and exactly, so "/n" no longer catches
+ * every line that happens to start with "/n".
+ *
+ * Looking up a verb hashes the characters of the line in place, nothing is lowercased or
+ * copied, and the entries are created once when the table is built. The line transports
+ * look verbs up on the received bytes, and only decode the arguments of a known command.
+ */
+final class CommandTable<T> {
+
+    /**
+     * A single command. Returns false if the session should be closed afterwards.
+     */
+    interface Command<T> {
+        boolean run(T target, String arguments) throws Exception;
+    }
+
+    /**
+     * A registered command. Echoed commands are also broadcast as a chat line from their
+     * sender, the way every command used to be. Each entry keeps the latency of its own runs.
+     */
+    static final class Entry<T> {
+        final String verb;
+        final boolean echoed;
+        final Command<T> command;
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        private Entry(String verb, boolean echoed, Command<T> command) {
+            this.verb = verb;
+            this.echoed = echoed;
+            this.command = command;
+        }
+    }
+
+    // Open addressing, the table is kept at most half full so probes stay short
+    private static final int SLOTS = 64;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Entry<T>[] entries = new Entry[SLOTS];
+    private int count;
+
+    /**
+     * Registers a command under its verb, which is given without the leading slash.
+     */
+    CommandTable<T> add(String verb, boolean echoed, Command<T> command) {
+        if (count >= SLOTS / 2) {
+            throw new IllegalStateException("Too many commands");
+        }
+        int slot = hash(verb, 0, verb.length()) & (SLOTS - 1);
+        while (entries[slot] != null) {
+            if (entries[slot].verb.equalsIgnoreCase(verb)) {
+                throw new IllegalArgumentException("Duplicate command " + verb);
+            }
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        entries[slot] = new Entry<>(verb, echoed, command);
+        count++;
+        return this;
+    }
+
+    /**
+     * Finds the command of an input line starting with a slash, or null if the verb is not
+     * a known command.
+     */
+    Entry<T> lookup(String input) {
+        int end = verbEnd(input);
+        int length = end - 1;
+        int slot = hash(input, 1, end) & (SLOTS - 1);
+        Entry<T> entry;
+        while ((entry = entries[slot]) != null) {
+            if (entry.verb.length() == length && input.regionMatches(true, 1, entry.verb, 0, length)) {
+                return entry;
+            }
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        return null;
+    }
+
+    /**
+     * The same lookup on a line still in UTF-8, from its slash to its end, so chat and
+     * commands are told apart before anything is decoded. Verbs are ASCII, a line whose
+     * first word holds anything else is looked up as text.
+     */
+    Entry<T> lookup(ByteBuffer input) {
+        int from = input.position() + 1;
+        int end = verbEnd(input);
+        if (end < 0) {
+            return lookup(text(input, input.position(), input.limit()));
+        }
+        int length = end - from;
+        int slot = hash(input, from, end) & (SLOTS - 1);
+        Entry<T> entry;
+        while ((entry = entries[slot]) != null) {
+            if (entry.verb.length() == length && matches(input, from, entry.verb)) {
+                return entry;
+            }
+            slot = (slot + 1) & (SLOTS - 1);
+        }
+        return null;
+    }
+
+    // The registered commands, in no particular order
+    List<Entry<T>> entries() {
+        List<Entry<T>> list = new ArrayList<>(count);
+        for (Entry<T> entry : entries) {
+            if (entry != null) {
+                list.add(entry);
+            }
+        }
+        return list;
+    }
+
+    // Everything after the verb, without the surrounding spaces
+    static String arguments(String input) {
+        int end = verbEnd(input);
+        return end >= input.length() ? "" : input.substring(end + 1).trim();
+    }
+
+    // Everything after the verb of a line in UTF-8, the only part of a command that is decoded
+    static String arguments(ByteBuffer input) {
+        int end = verbEnd(input);
+        if (end < 0) {
+            return arguments(text(input, input.position(), input.limit()));
+        }
+        return end >= input.limit() ? "" : text(input, end + 1, input.limit()).trim();
+    }
+
+    // The verb runs from after the slash up to the first space
+    private static int verbEnd(String input) {
+        int end = 1;
+        while (end < input.length() && !Character.isWhitespace(input.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    // The same on a line in UTF-8, -1 if the verb holds a byte that is not ASCII
+    private static int verbEnd(ByteBuffer input) {
+        int end = input.position() + 1;
+        while (end < input.limit()) {
+            byte b = input.get(end);
+            if (b < 0) {
+                return -1;
+            }
+            if (Character.isWhitespace(b)) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean matches(ByteBuffer input, int from, String verb) {
+        for (int i = 0; i < verb.length(); i++) {
+            if (Character.toLowerCase((char) input.get(from + i)) != Character.toLowerCase(verb.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String text(ByteBuffer input, int from, int to) {
+        if (input.hasArray()) {
+            return new String(input.array(), input.arrayOffset() + from, to - from, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[to - from];
+        input.duplicate().position(from).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Hashes ASCII the way the text version does, so both find the same slot
+    private static int hash(ByteBuffer input, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + Character.toLowerCase((char) input.get(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int hash(String text, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + Character.toLowerCase(text.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,446 @@
+package DemoThree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Coordinator election and dethrone voting in one room. All of this state is owned by a
+ * single thread, the room's shard: handlers only post events (join, leave, bestow, dethrone,
+ * vote) and the shard applies them one at a time, so the voter sets and the vote target need
+ * no locking at all.
+ *
+ * Nothing is re-evaluated per chat message anymore, only when membership, roles or votes
+ * actually change.
+ *
+ * In cluster mode only the leader's coordination is used, the other nodes forward their
+ * events to it and the leader tells them about the roles it hands out.
+ *
+ * The public methods post events, the on methods apply them. The latter may only be called
+ * by whoever owns the state, which is the shard (or a benchmark running one instance on its
+ * own thread).
+ *
+ * Every change to the members, the coordinators or the dethroned users bumps the room's
+ * version and is kept in a short history, so a client can ask for only what changed since
+ * a version it already has: "+name" joined, "-name" left, "@name" became a coordinator,
+ * "~name" stopped being one, "!name" was dethroned and "!*" means everybody requalified.
+ *
+ * The state is also copied for the StateSnapshot, on the shard and only after it changed,
+ * and a restarted server picks it up again from there.
+ */
+final class Coordination {
+
+    /**
+     * Where the outcome of the events goes. The server broadcasts it to the room and logs
+     * the role changes, a benchmark drops it all.
+     */
+    interface Announcer {
+        // A system line for everybody in the room, across the cluster
+        void broadcast(String room, String message);
+
+        // A line for the server's own log
+        void log(String message);
+    }
+
+    static final Announcer CHAT = new Announcer() {
+        @Override
+        public void broadcast(String room, String message) {
+            ChatServer.broadcast(room, message);
+        }
+
+        @Override
+        public void log(String message) {
+            System.out.println(message);
+        }
+    };
+
+    private final String room;
+    private final SessionRegistry sessions;
+    private final Executor thread;
+    private final Announcer announcer;
+
+    // Members in the order they joined, the earliest eligible one is nominated as coordinator
+    private final Set<String> members = new LinkedHashSet<>();
+
+    // List of dethroned users, these users are not allowed to be nominated as coordinators unless the server lifetime is up
+    private final Set<String> dethroned = new LinkedHashSet<>();
+
+    // All yes voters, used to store the names of the users who have cast a vote
+    // A vote is in progress as long as this is not empty, since the user who starts it votes yes
+    private final Set<String> yesvoters = new HashSet<>();
+
+    // All no voters
+    private final Set<String> novoters = new HashSet<>();
+
+    // The coordinators of this room, the sessions carry the same role for the handlers to check
+    private final Set<String> coordinators = new LinkedHashSet<>();
+
+    // The user the current vote is about
+    private String target;
+
+    // Versions start from the clock, so a new cluster leader does not reuse the versions of the previous one
+    private long version = System.currentTimeMillis();
+    // The latest changes, the last one being the change to the current version
+    private static final int HISTORY = 256;
+    private final ArrayDeque<String> changes = new ArrayDeque<>();
+    // The snapshot of the current version, null until somebody asks for it
+    private Presence presence;
+    // The copy saved to disk, null once anything changed since, votes included
+    private StateSnapshot.RoomState saved;
+
+    Coordination(String room, SessionRegistry sessions, Executor thread) {
+        this(room, sessions, thread, CHAT);
+    }
+
+    Coordination(String room, SessionRegistry sessions, Executor thread, Announcer announcer) {
+        this.room = room;
+        this.sessions = sessions;
+        this.thread = thread;
+        this.announcer = announcer;
+    }
+
+    void join(String name) {
+        if (!forwarded("join", name, "")) {
+            thread.execute(() -> onJoin(name));
+        }
+    }
+
+    void leave(String name) {
+        if (!forwarded("leave", name, "")) {
+            thread.execute(() -> onLeave(name));
+        }
+    }
+
+    void bestow(String by, String nominee) {
+        if (!forwarded("bestow", by, nominee)) {
+            thread.execute(() -> onBestow(by, nominee));
+        }
+    }
+
+    void dethrone(String by, String nominee) {
+        if (!forwarded("dethrone", by, nominee)) {
+            thread.execute(() -> onDethrone(by, nominee));
+        }
+    }
+
+    void vote(String by, boolean yes) {
+        if (!forwarded("vote", by, yes ? "y" : "n")) {
+            thread.execute(() -> onVote(by, yes));
+        }
+    }
+
+    // The users of the room, or only the changes since the given version, -1 for all of them
+    // The lists are only sent to the user who asked for them
+    void listMembers(String by, long since) {
+        if (!forwarded("userlist", by, String.valueOf(since))) {
+            thread.execute(() -> onListMembers(by, since));
+        }
+    }
+
+    // List dethroned users
+    void listDethroned(String by) {
+        if (!forwarded("dthlist", by, "")) {
+            thread.execute(() -> ChatServer.tell(by, presence().dethronedReply));
+        }
+    }
+
+    // List coordinators
+    void listCoordinators(String by) {
+        if (!forwarded("crdntrlist", by, "")) {
+            thread.execute(() -> ChatServer.tell(by, presence().coordinatorsReply));
+        }
+    }
+
+    // Starts over from the given members, in cluster mode when this node has just become the leader
+    // Whatever vote the previous leader was running is dropped
+    // The roles are taken over from the sessions, which every node keeps up to date
+    void resync(Collection<String> names) {
+        List<String> snapshot = new ArrayList<>(names);
+        thread.execute(() -> {
+            members.clear();
+            members.addAll(snapshot);
+            coordinators.clear();
+            for (String name : snapshot) {
+                Session session = sessions.get(name);
+                if (session != null && room.equals(session.coordinates())) {
+                    coordinators.add(name);
+                }
+            }
+            yesvoters.clear();
+            novoters.clear();
+            // The history of the previous leader is gone, clients asking for changes get the whole list
+            version = Math.max(version + 1, System.currentTimeMillis());
+            changes.clear();
+            presence = null;
+            saved = null;
+            findcoordinator();
+        });
+    }
+
+    /**
+     * Picks the state of the last snapshot up again, after a restart. Only the members whose
+     * sessions were restored with it are back, the others are gone along with their roles and
+     * votes, while the dethroned users stay dethroned whoever is left.
+     */
+    void restore(StateSnapshot.RoomState state, Set<String> restored) {
+        thread.execute(() -> {
+            for (String name : state.members) {
+                if (restored.contains(name)) {
+                    members.add(name);
+                }
+            }
+            for (String name : state.coordinators) {
+                Session session = sessions.get(name);
+                if (members.contains(name) && session != null) {
+                    coordinators.add(name);
+                    session.grantCoordinator(room);
+                }
+            }
+            dethroned.addAll(state.dethroned);
+            if (state.target != null && coordinators.contains(state.target)) {
+                target = state.target;
+                yesvoters.addAll(state.yesvoters);
+                yesvoters.retainAll(members);
+                novoters.addAll(state.novoters);
+                novoters.retainAll(members);
+            }
+            // Versions go on from the saved one, the history of changes before the restart is gone
+            version = Math.max(version, state.version + 1);
+            changes.clear();
+            presence = null;
+            saved = null;
+            // Fewer members than before may decide the vote, or leave the room without a coordinator
+            concludevoting();
+            findcoordinator();
+        });
+    }
+
+    // The state to save, copied on the shard, and only again once it changed
+    CompletableFuture<StateSnapshot.RoomState> save() {
+        CompletableFuture<StateSnapshot.RoomState> saving = new CompletableFuture<>();
+        thread.execute(() -> {
+            if (saved == null) {
+                saved = new StateSnapshot.RoomState(room, version, members, coordinators, dethroned,
+                        yesvoters.isEmpty() ? null : target, yesvoters, novoters);
+            }
+            saving.complete(saved);
+        });
+        return saving;
+    }
+
+    // A live view of the coordinators, only to be read by whoever owns the state
+    Set<String> coordinators() {
+        return Collections.unmodifiableSet(coordinators);
+    }
+
+    // Sends the event to the cluster leader instead, unless this node leads or there is no cluster
+    private boolean forwarded(String event, String by, String argument) {
+        Cluster cluster = ChatServer.cluster;
+        return cluster != null && cluster.forward(room, event, by, argument);
+    }
+
+    void onJoin(String name) {
+        if (members.add(name)) {
+            changed("+" + name);
+        }
+        // The user who happens to join first gets notified, this is applicable multiple times during the server lifetime
+        if (members.size() == 1) {
+            announcer.broadcast(room, name + " is the first one to join");
+            announcer.log(name + " is the first one to join " + room);
+        }
+        findcoordinator();
+    }
+
+    // Whenever a user leaves, their votes go too
+    // With the exception of dethroned list, as users should not be able to regain the qualification to be a coordinator simply by rejoining
+    void onLeave(String name) {
+        if (members.remove(name)) {
+            changed("-" + name);
+        }
+        if (yesvoters.remove(name) | novoters.remove(name)) {
+            saved = null;
+        }
+        // A coordinator moving to another room does not keep the role here
+        if (coordinators.contains(name)) {
+            revoke(name);
+        }
+        // The population shrank, which may decide an ongoing vote
+        concludevoting();
+        findcoordinator();
+    }
+
+    // Grant the coordinator status to a certain user
+    // Only coordinators are allowed to do this
+    void onBestow(String by, String nominee) {
+        if (!coordinators.contains(by)) {
+            announcer.broadcast(room, "System: " + "Only coordinators are allowed to do that");
+        } else if (coordinators.contains(nominee)) {
+            announcer.broadcast(room, "System: " + nominee + " is already a coordinator");
+        } else if (members.contains(nominee) && grant(nominee)) {
+            announcer.broadcast(room, "System: " + nominee + " is now the coordinator");
+        } else {
+            announcer.broadcast(room, "System: " + "Invalid input, name not found");
+        }
+    }
+
+    // Vote to revoke the coordinator status of an user
+    // This starts the voting process against the targeted user
+    // The voting process will only start if there is no other voting process taking place
+    void onDethrone(String by, String nominee) {
+        if (!yesvoters.isEmpty()) {
+            announcer.broadcast(room, "System: " + "Invalid request, voting already in process");
+            return;
+        }
+        if (!coordinators.contains(nominee)) {
+            announcer.broadcast(room, "System: " + "Invalid input, the name not found in coordinator list");
+            return;
+        }
+        target = nominee;
+        // The first voter can ONLY be added through this command, which counts the voting process as started
+        yesvoters.add(by);
+        saved = null;
+        announcer.broadcast(room, "System: " + "The voting process to dethrone " + target + " has started");
+        announcer.broadcast(room, "System: " + "Type /y or /n to cast your vote");
+        // The user to start the voting process votes automatically yes
+        announcer.broadcast(room, "System: " + by + " has voted yes " + "[" + yesvoters.size() + "/" + members.size() + "]");
+        concludevoting();
+    }
+
+    // Casts a yes or no vote, the voting process is determined only by the yesvoters list
+    void onVote(String by, boolean yes) {
+        Set<String> voters = yes ? yesvoters : novoters;
+        // If there is no ongoing voting process, the request is invalid
+        if (yesvoters.isEmpty()) {
+            announcer.broadcast(room, "System: " + "Invalid request, there is no voting process");
+        // No user may vote twice
+        } else if (!voters.add(by)) {
+            announcer.broadcast(room, "System: " + "Invalid request, you have already voted");
+        } else {
+            saved = null;
+            announcer.broadcast(room, "System: " + by + " has voted " + (yes ? "yes " : "no ") + "[" + voters.size() + "/" + members.size() + "]");
+            concludevoting();
+        }
+    }
+
+    // A simple function to conclude the voting process
+    private void concludevoting() {
+        if (yesvoters.isEmpty()) {
+            return;
+        }
+        // if the yesvoters constitute more than half of the server population, the voting is decisive and therefore it concludes
+        if (yesvoters.size() > members.size() / 2) {
+            revoke(target);
+            if (dethroned.add(target)) {
+                changed("!" + target);
+            }
+            announcer.broadcast(room, "System: " + target + " has been dethroned");
+            //The sets for voters are cleared, it is important as this is used to determine whether there is a voting process
+            yesvoters.clear();
+            novoters.clear();
+            saved = null;
+            findcoordinator();
+        // if the novoters constitute more than half of the server population, the voting is indecisive and therefore it concludes
+        } else if (novoters.size() > members.size() / 2) {
+            announcer.broadcast(room, "System: " + target + " reigns for another day");
+            yesvoters.clear();
+            novoters.clear();
+            saved = null;
+        }
+    }
+
+    // A simple function to assign a new coordinator
+    // If every user has been dethroned, the list is cleared, as there are no coordinator candidates
+    private void findcoordinator() {
+        if (!members.isEmpty() && dethroned.containsAll(members)) {
+            dethroned.clear();
+            changed("!*");
+            announcer.broadcast(room, "System: " + " all users are now requalified to be coordinators");
+        }
+        // Server needs to have at least one member to be qualified as a coordinator
+        if (members.isEmpty() || !coordinators.isEmpty()) {
+            return;
+        }
+        for (String name : members) {
+            // The user must not be dethroned
+            if (!dethroned.contains(name) && grant(name)) {
+                // Announcing the change
+                announcer.broadcast(room, name + " is now the coordinator");
+                announcer.log(name + " is now the coordinator of " + room);
+                return;
+            }
+        }
+    }
+
+    // Role changes go through here so the sessions and the other cluster nodes hear about them
+    private boolean grant(String name) {
+        Session session = sessions.get(name);
+        if (session == null || !coordinators.add(name)) {
+            return false;
+        }
+        session.grantCoordinator(room);
+        changed("@" + name);
+        Cluster cluster = ChatServer.cluster;
+        if (cluster != null) {
+            cluster.role(room, name, true);
+        }
+        return true;
+    }
+
+    private void revoke(String name) {
+        if (coordinators.remove(name)) {
+            changed("~" + name);
+        }
+        Session session = sessions.get(name);
+        if (session != null) {
+            session.revokeCoordinator(room);
+        }
+        Cluster cluster = ChatServer.cluster;
+        if (cluster != null) {
+            cluster.role(room, name, false);
+        }
+    }
+
+    void onListMembers(String by, long since) {
+        long behind = version - since;
+        if (since < 0 || behind < 0 || behind > changes.size()) {
+            // Unknown or too old a version, the whole list it is
+            ChatServer.tell(by, presence().membersReply);
+        } else if (behind == 0) {
+            ChatServer.tell(by, Frame.message("System: No changes since version " + version));
+        } else {
+            StringBuilder reply = new StringBuilder("System: Changes since version " + since + ":");
+            int skip = changes.size() - (int) behind;
+            for (String change : changes) {
+                if (skip-- <= 0) {
+                    reply.append(' ').append(change);
+                }
+            }
+            ChatServer.tell(by, Frame.message(reply + " (version " + version + ")"));
+        }
+    }
+
+    // The snapshot of the current version, built on the first request after a change
+    private Presence presence() {
+        if (presence == null) {
+            presence = new Presence(version, members, coordinators, dethroned);
+        }
+        return presence;
+    }
+
+    private void changed(String change) {
+        version++;
+        changes.addLast(change);
+        if (changes.size() > HISTORY) {
+            changes.removeFirst();
+        }
+        presence = null;
+        saved = null;
+    }
+}
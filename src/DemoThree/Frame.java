@@ -0,0 +1,194 @@
+package DemoThree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One line of the protocol, encoded to UTF-8 exactly once. A broadcast builds a single
+ * frame and hands the very same instance to every recipient's outbound queue, the bytes
+ * are then written to each socket as they are, with no per recipient String or encoding.
+ *
+ * The bytes are never modified after construction, which is what makes sharing safe. They
+ * usually live on the heap, but a frame can also wrap a region of a memory mapped file,
+ * which is how the journal replays history without copying it.
+ *
+ * Clients speaking the binary protocol get the same frame in the BinaryProtocol layout,
+ * which is also encoded only once, the first time a binary client needs it.
+ */
+final class Frame {
+
+    // Exactly one of the two is set
+    private final byte[] bytes;
+    private final ByteBuffer mapped;
+    // Whether this is a chat line, the rest are protocol lines such as NAMEACCEPTED which a client cannot do without
+    private final boolean chat;
+
+    // The binary encoding, built on first use, racing threads at worst build equal copies
+    private volatile byte[] binary;
+
+    // The size of the scratch buffer every writer keeps for mapped frames
+    static final int CHUNK = 512;
+
+    private static final byte[] CHAT = "MESSAGE ".getBytes(StandardCharsets.UTF_8);
+
+    private Frame(byte[] bytes, ByteBuffer mapped) {
+        this.bytes = bytes;
+        this.mapped = mapped;
+        this.chat = startsWith(buffer(), CHAT);
+    }
+
+    private static boolean startsWith(ByteBuffer line, byte[] prefix) {
+        if (line.remaining() < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line.get(line.position() + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A raw protocol line, such as "SUBMITNAME"
+    static Frame line(String line) {
+        return new Frame((line + "\n").getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    // A chat line, displayed as is by the clients
+    static Frame message(String text) {
+        return line("MESSAGE " + text);
+    }
+
+    // A chat line whose text is still the UTF-8 a client sent, the prefix being "MESSAGE <name>: "
+    static Frame message(byte[] prefix, ByteBuffer text) {
+        byte[] line = new byte[prefix.length + text.remaining() + 1];
+        System.arraycopy(prefix, 0, line, 0, prefix.length);
+        text.duplicate().get(line, prefix.length, text.remaining());
+        line[line.length - 1] = '\n';
+        return new Frame(line, null);
+    }
+
+    /**
+     * Whether the text can go out as part of one line. Anything a client sends is checked
+     * before it is put in a frame, as a line break would let it forge protocol lines such
+     * as NAMEACCEPTED in everybody else's session. Older clients read with a Scanner,
+     * which also breaks lines at a lone CR and at the Unicode line separators.
+     */
+    static boolean isSingleLine(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The same check on text still in UTF-8, where U+0085 is C2 85 and U+2028 and U+2029 are E2 80 A8 and A9
+    static boolean isSingleLine(ByteBuffer text) {
+        int limit = text.limit();
+        for (int i = text.position(); i < limit; i++) {
+            byte b = text.get(i);
+            if (b == '\n' || b == '\r') {
+                return false;
+            }
+            if (b == (byte) 0xC2 && i + 1 < limit && text.get(i + 1) == (byte) 0x85) {
+                return false;
+            }
+            if (b == (byte) 0xE2 && i + 2 < limit && text.get(i + 1) == (byte) 0x80
+                    && (text.get(i + 2) == (byte) 0xA8 || text.get(i + 2) == (byte) 0xA9)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // A frame over already encoded bytes, such as a record in a mapped journal segment
+    // The buffer must hold the whole line, newline included, and must not change afterwards
+    static Frame wrap(ByteBuffer encoded) {
+        return new Frame(null, encoded.asReadOnlyBuffer());
+    }
+
+    // A MESSAGE line, the only kind of frame a full queue may throw away
+    boolean isChat() {
+        return chat;
+    }
+
+    // Size of the encoded line in bytes, newline included
+    int length() {
+        return bytes != null ? bytes.length : mapped.remaining();
+    }
+
+    // Size in the encoding the client speaks
+    int length(boolean binary) {
+        return binary ? binary().length : length();
+    }
+
+    // A read only view over the encoded line, every caller gets its own position but the bytes are shared
+    ByteBuffer buffer() {
+        return bytes != null ? ByteBuffer.wrap(bytes).asReadOnlyBuffer() : mapped.duplicate();
+    }
+
+    // The view over the encoding the client speaks
+    ByteBuffer buffer(boolean binary) {
+        return binary ? ByteBuffer.wrap(binary()).asReadOnlyBuffer() : buffer();
+    }
+
+    void writeTo(OutputStream out, boolean binary, byte[] scratch) throws IOException {
+        if (binary) {
+            out.write(binary());
+        } else {
+            writeTo(out, scratch);
+        }
+    }
+
+    /**
+     * Writes the line to the stream. Streams only take arrays, so a mapped frame is copied
+     * through the scratch buffer in pieces, the writer passes the same one for all its frames.
+     */
+    void writeTo(OutputStream out, byte[] scratch) throws IOException {
+        if (bytes != null) {
+            out.write(bytes);
+            return;
+        }
+        // Absolute reads, so concurrent writers share the mapped buffer without a view each
+        int start = mapped.position();
+        int end = mapped.limit();
+        for (int at = start; at < end; at += scratch.length) {
+            int count = Math.min(scratch.length, end - at);
+            mapped.get(at, scratch, 0, count);
+            out.write(scratch, 0, count);
+        }
+    }
+
+    private byte[] binary() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            // The line without its newline, split after its first word
+            ByteBuffer line = buffer();
+            line.limit(line.limit() - 1);
+            int keyword = 0;
+            while (keyword < line.remaining() && line.get(line.position() + keyword) != ' ') {
+                keyword++;
+            }
+            byte opcode = BinaryProtocol.opcode(line, keyword);
+            if (opcode != BinaryProtocol.LINE) {
+                line.position(line.position() + Math.min(keyword + 1, line.remaining()));
+            }
+            encoded = new byte[5 + line.remaining()];
+            ByteBuffer.wrap(encoded).putInt(1 + line.remaining()).put(opcode).put(line);
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    @Override
+    public String toString() {
+        ByteBuffer view = buffer();
+        byte[] text = new byte[view.remaining() - 1];
+        view.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
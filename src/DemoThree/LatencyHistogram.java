@@ -0,0 +1,100 @@
+package DemoThree;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, for percentiles such as p50 or p999. Recording
+ * is a single atomic increment on a bucket, with no lock, so any number of threads can
+ * record into the same histogram from the paths they are measuring.
+ *
+ * Buckets are log linear: every power of two is split into 16 equal buckets, so a value is
+ * reported at most about 6% above what was recorded, from a nanosecond up to centuries.
+ */
+final class LatencyHistogram {
+
+    // 16 exact buckets for 0 to 15, then 16 per power of two up to 2^62
+    private static final int SUB_BUCKETS = 16;
+    private static final int BUCKETS = SUB_BUCKETS * 61;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        total.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    long mean() {
+        long count = count();
+        return count == 0 ? 0 : sum.sum() / count;
+    }
+
+    /**
+     * The value below which the given fraction of the recordings fall, such as 0.99 for the
+     * p99, rounded up to the end of its bucket. Zero if nothing was recorded.
+     */
+    long percentile(double fraction) {
+        // Recordings may land while we count, so work from one pass over the buckets
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max());
+            }
+        }
+        return max();
+    }
+
+    // Percentiles in microseconds, the way the load generator and /stats print them
+    String summary() {
+        return String.format("n=%d p50=%dus p99=%dus p999=%dus max=%dus",
+                count(), percentile(0.5) / 1000, percentile(0.99) / 1000, percentile(0.999) / 1000, max() / 1000);
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - 4)) & (SUB_BUCKETS - 1);
+        return (magnitude - 3) * SUB_BUCKETS + sub;
+    }
+
+    // The largest value which falls in the bucket
+    private static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS + 3;
+        int sub = bucket % SUB_BUCKETS;
+        long lowest = (long) (SUB_BUCKETS + sub) << (magnitude - 4);
+        return lowest + (1L << (magnitude - 4)) - 1;
+    }
+}
@@ -0,0 +1,160 @@
+package DemoThree;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits the line protocol into lines, straight from the received bytes. It replaces the
+ * Scanners, which ran a regex, filled a CharBuffer and built a String for every line, and
+ * would buffer a line of any length.
+ *
+ * A line is found by looking for the newline byte, and stays a range of the buffer it was
+ * received in: it is only decoded from UTF-8 when its text is asked for, so finding a line
+ * allocates nothing. A line longer than the maximum is refused with an IOException before
+ * it can take more memory than that.
+ *
+ * The decoder works on a buffer owned by the caller, as the NIO transport does, or reads
+ * from a stream into its own buffer, which then never grows past the maximum line. A line
+ * can also be handled as bytes, which is how chat reaches its frame without ever being
+ * decoded.
+ */
+final class LineDecoder {
+
+    // The longest line a client may send the server, -Dchat.line.max bytes, 4096 by default
+    static final int MAX_LINE = Integer.getInteger("chat.line.max", 4096);
+
+    private final int maxLine;
+    // The buffer the current line was found in, and where it is
+    private ByteBuffer source;
+    private int start;
+    private int length;
+    private String text;
+
+    // Only used when reading from a stream, it holds the bytes received but not handled yet
+    private ByteBuffer own;
+
+    // A decoder for a buffer owned by the caller, which only ever calls next, so it has no stream buffer
+    LineDecoder() {
+        this.maxLine = MAX_LINE;
+    }
+
+    // A decoder whose stream buffer is allocated at its full size right away
+    LineDecoder(int maxLine) {
+        this(maxLine, maxLine);
+    }
+
+    // A decoder whose stream buffer starts small and only grows when a long line comes in
+    LineDecoder(int initial, int maxLine) {
+        this.maxLine = maxLine;
+        this.own = ByteBuffer.allocate(Math.min(initial, maxLine) + 2);
+        this.own.limit(0);
+    }
+
+    /**
+     * Finds the next line among the bytes of the buffer, which is in read mode, and moves the
+     * buffer's position past it. Returns false if there is no complete line yet, the bytes
+     * of the partial line are then left where they are.
+     */
+    boolean next(ByteBuffer buffer) throws IOException {
+        int from = buffer.position();
+        int limit = buffer.limit();
+        for (int i = from; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                int end = i > from && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                if (end - from > maxLine) {
+                    throw new IOException("Line longer than " + maxLine + " bytes");
+                }
+                source = buffer;
+                start = from;
+                length = end - from;
+                text = null;
+                buffer.position(i + 1);
+                return true;
+            }
+        }
+        if (limit - from > maxLine + 1) {
+            throw new IOException("Line longer than " + maxLine + " bytes");
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next line from the stream, blocking until it is complete. Returns false once
+     * the stream has ended, a last line without a newline is dropped.
+     */
+    boolean read(InputStream input) throws IOException {
+        while (!next(own)) {
+            own.compact();
+            if (!own.hasRemaining()) {
+                // Only when the decoder started small, next refuses the line before a full sized buffer is full
+                own.flip();
+                own = ByteBuffer.allocate(Math.min(own.capacity() * 2, maxLine + 2)).put(own);
+            }
+            int count = input.read(own.array(), own.position(), own.remaining());
+            if (count < 0) {
+                own.flip();
+                return false;
+            }
+            own.position(own.position() + count);
+            own.flip();
+        }
+        return true;
+    }
+
+    /**
+     * The stream to go on reading from when switching to another protocol, with the bytes
+     * the decoder had already received in front of it.
+     */
+    InputStream rest(InputStream input) {
+        if (own == null || !own.hasRemaining()) {
+            return input;
+        }
+        byte[] received = Arrays.copyOfRange(own.array(), own.position(), own.limit());
+        own.position(own.limit());
+        return new SequenceInputStream(new ByteArrayInputStream(received), input);
+    }
+
+    // Length of the current line in bytes, without its newline
+    int length() {
+        return length;
+    }
+
+    // The first byte of the current line, -1 if it is empty
+    int first() {
+        return length > 0 ? source.get(start) : -1;
+    }
+
+    /**
+     * A view over the bytes of the current line, without its newline. Nothing is decoded or
+     * copied, and it is only valid as long as the text would be.
+     */
+    ByteBuffer bytes() {
+        ByteBuffer view = source.duplicate();
+        view.limit(start + length).position(start);
+        return view;
+    }
+
+    /**
+     * The current line, decoded on the first call. Only valid until the next line is looked
+     * for, as the bytes may be overwritten by then.
+     */
+    String text() {
+        if (text == null) {
+            if (source.hasArray()) {
+                text = new String(source.array(), source.arrayOffset() + start, length, StandardCharsets.UTF_8);
+            } else {
+                byte[] bytes = new byte[length];
+                ByteBuffer view = source.duplicate();
+                view.position(start);
+                view.get(bytes);
+                text = new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+        return text;
+    }
+}
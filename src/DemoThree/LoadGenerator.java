@@ -0,0 +1,201 @@
+package DemoThree;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless load generator for the chat server. It connects a number of ChatClientCore
+ * clients, lets them pick their names, then sends chat lines, whispers and votes from
+ * random clients at a fixed rate and measures how long every line takes to come back.
+ *
+ * Every chat line and whisper carries the time it was scheduled to be sent, so the
+ * latency of a late send is counted from when it should have gone out, and a stalled
+ * server cannot hide behind a sender that waited for it.
+ *
+ * The run is configured with system properties:
+ *
+ *   -Dchat.load.clients   number of connections, 100 by default
+ *   -Dchat.load.rate      lines sent per second by all clients together, 1000 by default
+ *   -Dchat.load.seconds   duration of the run, 30 by default
+ *   -Dchat.load.whispers  percentage of lines sent as whispers, 10 by default
+ *   -Dchat.load.votes     percentage of lines sent as /y or /n votes, 1 by default
+ *   -Dchat.protocol=line  to use the line protocol instead of the binary one
+ */
+public class LoadGenerator {
+
+    // Marks the lines sent by the generator, followed by the scheduled send time
+    private static final String MARK = "LOAD ";
+
+    private final ChatClientCore[] clients;
+    // The clients whose names were accepted, only these send
+    private final ConcurrentLinkedQueue<ChatClientCore> joined = new ConcurrentLinkedQueue<>();
+    // Counted down once per client, when its name is accepted or when it gives up
+    private final CountDownLatch accepted;
+    private final AtomicBoolean[] arrived;
+    private final AtomicInteger closed = new AtomicInteger();
+    private final LatencyHistogram broadcasts = new LatencyHistogram();
+    private final LatencyHistogram whispers = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    // Lines older than this, such as replayed history, are not measured
+    private final long started = System.nanoTime();
+
+    LoadGenerator(String serverAddress, int serverPort, int count, boolean binary) {
+        clients = new ChatClientCore[count];
+        accepted = new CountDownLatch(count);
+        arrived = new AtomicBoolean[count];
+        for (int i = 0; i < count; i++) {
+            arrived[i] = new AtomicBoolean();
+            String name = "load" + i;
+            int index = i;
+            clients[i] = new ChatClientCore(serverAddress, serverPort, binary, new ChatClientCore.Listener() {
+                private int attempts;
+
+                // Names taken by an earlier run still connected get a suffix
+                public String screenName() {
+                    return attempts++ == 0 ? name : name + "-" + attempts;
+                }
+
+                public void accepted(String given) {
+                    if (arrive(index)) {
+                        joined.add(clients[index]);
+                    }
+                }
+
+                public void message(String text) {
+                    received(text);
+                }
+            });
+        }
+    }
+
+    // Connects every client, each on its own thread, and waits until all their names are accepted
+    void connect(ExecutorService readers) throws InterruptedException {
+        for (int i = 0; i < clients.length; i++) {
+            ChatClientCore client = clients[i];
+            int index = i;
+            readers.execute(() -> {
+                try {
+                    client.run();
+                } catch (Exception e) {
+                    System.out.println("Connection failed: " + e);
+                } finally {
+                    closed.incrementAndGet();
+                    // A client that never got in must not keep the others waiting
+                    arrive(index);
+                }
+            });
+        }
+        if (!accepted.await(60, TimeUnit.SECONDS) || joined.size() < clients.length) {
+            System.out.println("Only " + joined.size() + " clients got in");
+        }
+    }
+
+    // Counts the client down the first time only, the latch would otherwise open early
+    private boolean arrive(int index) {
+        if (!arrived[index].compareAndSet(false, true)) {
+            return false;
+        }
+        accepted.countDown();
+        return true;
+    }
+
+    /**
+     * Sends at the given rate for the given time. Lines are scheduled at fixed intervals, and
+     * if the sender falls behind it catches up with every line that is due.
+     */
+    void send(double rate, long seconds, int whisperPercent, int votePercent) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long next = System.nanoTime();
+        long end = next + TimeUnit.SECONDS.toNanos(seconds);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        ChatClientCore[] senders = joined.toArray(new ChatClientCore[0]);
+        if (senders.length == 0) {
+            return;
+        }
+        while (next < end) {
+            long now = System.nanoTime();
+            while (next <= now && next < end) {
+                ChatClientCore client = senders[random.nextInt(senders.length)];
+                int kind = random.nextInt(100);
+                if (kind < votePercent) {
+                    client.send(random.nextBoolean() ? "/y" : "/n");
+                } else if (kind < votePercent + whisperPercent) {
+                    client.send("/whisper load" + random.nextInt(clients.length) + " " + MARK + next);
+                } else {
+                    client.send(MARK + next);
+                }
+                sent.increment();
+                next += interval;
+            }
+            LockSupport.parkNanos(next - now);
+        }
+    }
+
+    // Measures a line coming back, broadcasts arrive as "name: LOAD <time>" and whispers as "Whisper from name: LOAD <time>"
+    private void received(String text) {
+        long now = System.nanoTime();
+        int mark = text.indexOf(MARK);
+        // The sender's own copy of a whisper is not a delivery
+        if (mark < 0 || text.startsWith("Whispered to")) {
+            return;
+        }
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(text.substring(mark + MARK.length()).trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (scheduled - started < 0) {
+            return;
+        }
+        (text.startsWith("Whisper from") ? whispers : broadcasts).record(now - scheduled);
+    }
+
+    void report(long seconds) {
+        long delivered = broadcasts.count() + whispers.count();
+        System.out.println("Sent " + sent.sum() + " lines, " + sent.sum() / seconds + "/s");
+        System.out.println("Delivered " + delivered + " lines, " + delivered / seconds + "/s");
+        System.out.println("Broadcast latency: " + broadcasts.summary());
+        System.out.println("Whisper latency:   " + whispers.summary());
+        System.out.println("Connections lost:  " + closed.get());
+    }
+
+    void close() {
+        for (ChatClientCore client : clients) {
+            client.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Pass the server IP and Port respectively as the command line arguments");
+            return;
+        }
+        int count = Integer.getInteger("chat.load.clients", 100);
+        double rate = Double.parseDouble(System.getProperty("chat.load.rate", "1000"));
+        long seconds = Long.getLong("chat.load.seconds", 30);
+
+        LoadGenerator generator = new LoadGenerator(args[0], Integer.parseInt(args[1]), count, ChatClientCore.binaryByDefault());
+        ExecutorService readers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "load-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        generator.connect(readers);
+        System.out.println(generator.joined.size() + " clients connected, sending " + rate + " lines/s for " + seconds + "s");
+        generator.send(rate, seconds, Integer.getInteger("chat.load.whispers", 10), Integer.getInteger("chat.load.votes", 1));
+        // Give the last lines a moment to arrive
+        Thread.sleep(1000);
+        generator.report(seconds);
+        generator.close();
+        readers.shutdownNow();
+    }
+}
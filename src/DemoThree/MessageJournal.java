@@ -0,0 +1,215 @@
+package DemoThree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append only journal of everything the server broadcasts, kept in memory mapped
+ * segment files. Appending only queues the already encoded frame, the copy into the
+ * mapped segment is done by the journal's own thread, so the broadcast path does not wait
+ * on the disk.
+ *
+ * Every record is laid out as
+ *
+ *   int length | long time | byte type | length bytes of the encoded line
+ *
+ * and a zero length marks the end of the data in a segment. A new segment is started once
+ * the current one cannot take the next record, and only the newest few segments are kept.
+ *
+ * The last records are also indexed in memory, as frames over the mapped bytes, so that
+ * a client who just joined can be sent the recent history straight from the segments.
+ */
+final class MessageJournal {
+
+    // Record types, only broadcast lines so far
+    static final byte BROADCAST = 1;
+
+    private static final int HEADER = 4 + 8 + 1;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int segmentsKept;
+    private final LinkedBlockingQueue<Frame> pending = new LinkedBlockingQueue<>();
+
+    // The recent records, as a ring of frames over the mapped segments
+    private final Frame[] recent;
+    private long recorded;
+    private final ReentrantLock recentLock = new ReentrantLock();
+
+    // Only touched by the journal thread once it is started
+    private final List<Path> segments = new ArrayList<>();
+    private MappedByteBuffer segment;
+    private long segmentNumber;
+
+    private MessageJournal(Path directory, int segmentSize, int segmentsKept, int replay) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.segmentsKept = Math.max(1, segmentsKept);
+        this.recent = new Frame[Math.max(1, replay)];
+    }
+
+    /**
+     * Opens the journal in the given directory, picking up after whatever an earlier run
+     * left there, and starts the journal thread.
+     */
+    static MessageJournal open(Path directory, int segmentSize, int segmentsKept, int replay) throws IOException {
+        MessageJournal journal = new MessageJournal(directory, segmentSize, segmentsKept, replay);
+        journal.recover();
+        Thread thread = new Thread(journal::run, "chat-journal");
+        thread.setDaemon(true);
+        thread.start();
+        return journal;
+    }
+
+    /**
+     * Queues a broadcast frame for the journal. Never blocks.
+     */
+    void append(Frame frame) {
+        pending.offer(frame);
+    }
+
+    /**
+     * The last records, oldest first, as frames over the mapped segments.
+     */
+    List<Frame> recent() {
+        recentLock.lock();
+        try {
+            int count = (int) Math.min(recorded, recent.length);
+            List<Frame> frames = new ArrayList<>(count);
+            for (long i = recorded - count; i < recorded; i++) {
+                frames.add(recent[(int) (i % recent.length)]);
+            }
+            return frames;
+        } finally {
+            recentLock.unlock();
+        }
+    }
+
+    // The journal thread, writes the queued frames in order
+    private void run() {
+        List<Frame> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+                for (Frame frame : batch) {
+                    write(frame);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.out.println("Journal error: " + e);
+            }
+            batch.clear();
+        }
+    }
+
+    private void write(Frame frame) throws IOException {
+        int length = frame.length();
+        if (HEADER + length + 4 > segmentSize) {
+            // Can never fit, not even in an empty segment
+            return;
+        }
+        // Leave room for the zero length which closes the segment
+        if (segment == null || segment.remaining() < HEADER + length + 4) {
+            roll();
+        }
+        int position = segment.position();
+        segment.putLong(position + 4, System.currentTimeMillis());
+        segment.put(position + 12, BROADCAST);
+        ByteBuffer payload = segment.duplicate();
+        payload.position(position + HEADER);
+        payload.put(frame.buffer());
+        // The length goes in last, a record is only visible once it is complete
+        segment.putInt(position, length);
+        segment.position(position + HEADER + length);
+        remember(position + HEADER, length);
+    }
+
+    private void remember(int offset, int length) {
+        ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        Frame frame = Frame.wrap(view.slice());
+        recentLock.lock();
+        try {
+            recent[(int) (recorded % recent.length)] = frame;
+            recorded++;
+        } finally {
+            recentLock.unlock();
+        }
+    }
+
+    // Starts a new segment and drops the oldest ones beyond the number kept
+    private void roll() throws IOException {
+        segmentNumber++;
+        Path path = directory.resolve(String.format("journal-%020d.log", segmentNumber));
+        segment = map(path, segmentSize);
+        segments.add(path);
+        while (segments.size() > segmentsKept) {
+            Files.deleteIfExists(segments.remove(0));
+        }
+    }
+
+    // Finds the segments of an earlier run, indexes their last records and continues the newest one
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> found = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path path : found) {
+                // Anything else matching the pattern is left alone, it is neither read nor rotated away
+                if (number(path) < 0) {
+                    System.out.println("Ignoring " + path + ", it is not a journal segment");
+                } else {
+                    segments.add(path);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(MessageJournal::number));
+        for (Path path : segments) {
+            segmentNumber = number(path);
+            // Segments written with another size are read up to their own length
+            segment = map(path, Files.size(path));
+            while (segment.remaining() >= HEADER) {
+                int position = segment.position();
+                int length = segment.getInt(position);
+                if (length <= 0 || position + HEADER + length > segment.limit()) {
+                    break;
+                }
+                segment.position(position + HEADER + length);
+                remember(position + HEADER, length);
+            }
+        }
+        if (segment != null && segment.capacity() != segmentSize) {
+            segment = null;
+        }
+    }
+
+    // The number in a segment's name, journal-<number>.log, or -1 if the name has none
+    private static long number(Path path) {
+        String file = path.getFileName().toString();
+        try {
+            return Long.parseLong(file.substring(8, file.length() - 4));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Maps the whole segment, growing the file to the given size if needed
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package DemoThree;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking transport for the chat server. Instead of one thread per client, a small
+ * number of event loops (roughly one per core) multiplex all the connections with a
+ * Selector, so an idle chatter only costs a selection key and a couple of buffers.
+ *
+ * The protocol is unchanged: every complete line read from a channel is handed to the
+ * same ChatServer.Handler the blocking transport uses, and everything the handler sends
+ * is queued and written out when the channel is ready for it, up to -Dchat.batch.size
+ * frames at a time with a single gathering write.
+ */
+final class NioTransport {
+
+    // Wakes up the connections paused by their rate limit
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "chat-throttle-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioTransport(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Accepts connections forever, handing them to the event loops in turn. Accepting is done
+     * with a blocking channel on the calling thread, the loops only ever see accepted channels.
+     */
+    void serve() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = listener.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. Other threads never touch the selector's key set directly,
+     * they post tasks which the loop runs between two selections.
+     */
+    private static final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "chat-loop-" + index);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.open();
+                } catch (IOException e) {
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.writable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    }
+                } catch (Exception e) {
+                    // A failing connection must never take the whole loop down with it
+                    System.out.println("Event loop error: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * One client connection. Lines for the client wait in its bounded Outbound queue, which
+     * is drained straight into the channel by whichever thread finds it idle; when the socket
+     * is full the drain is parked on OP_WRITE and resumed by the event loop, so nobody ever
+     * blocks on a slow client. The queue is corked while a read is handled, so the replies to
+     * everything the client sent in one read leave in one write.
+     */
+    private static final class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Outbound outbound;
+        private final ChatServer.Handler handler;
+        // Received bytes not handled yet, kept between reads as a line or frame may arrive in pieces
+        // Always large enough for the longest line allowed
+        private ByteBuffer input = ByteBuffer.allocate(Math.max(8192, LineDecoder.MAX_LINE + 2));
+        // Lines are found in the input buffer itself, the decoder needs no buffer of its own
+        private final LineDecoder lines = new LineDecoder();
+        private final AtomicBoolean parked = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // Set while the client is over its rate limit, set and cleared on the loop only
+        private volatile boolean paused;
+        // The batch being written, from first to batched, the rest did not fit in the socket last time
+        private final ByteBuffer[] batch = new ByteBuffer[Outbound.BATCH_SIZE];
+        private int first;
+        private int batched;
+        private SelectionKey key;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.outbound = new Outbound(this::drain, () -> loop.execute(this::close));
+            this.handler = new ChatServer.Handler(outbound, () -> loop.execute(this::close));
+        }
+
+        void open() {
+            handler.open();
+        }
+
+        // Reads whatever is available and feeds every complete line or binary frame to the handler
+        void read() {
+            if (paused) {
+                // A drain turned OP_READ back on meanwhile, off again until resume
+                interest(parked.get());
+                return;
+            }
+            try {
+                int count = channel.read(input);
+                if (count < 0) {
+                    close();
+                    return;
+                }
+            } catch (IOException e) {
+                ChatServer.metrics.error(e);
+                close();
+                return;
+            }
+            input.flip();
+            process();
+        }
+
+        /**
+         * Hands the received bytes to the handler until they run out or the client goes over its
+         * rate limit. In that case the rest stays in the buffer and the channel is not read
+         * until the wait is over, so the client's own socket fills up and holds it back.
+         */
+        private void process() {
+            outbound.cork();
+            try {
+                while (input.hasRemaining()) {
+                    long wait;
+                    if (handler.isBinary()) {
+                        if (input.remaining() < 4) {
+                            break;
+                        }
+                        int position = input.position();
+                        int length = input.getInt(position);
+                        if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+                            close();
+                            return;
+                        }
+                        if (input.remaining() < 4 + length) {
+                            // Only part of the frame is in, make sure the rest will fit behind it
+                            if (4 + length > input.capacity()) {
+                                ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                                bigger.put(input);
+                                bigger.flip();
+                                input = bigger;
+                            }
+                            break;
+                        }
+                        // The payload is handed over as a view over the receive buffer, nothing is copied
+                        ByteBuffer payload = input.duplicate();
+                        payload.position(position + 5).limit(position + 4 + length);
+                        input.position(position + 4 + length);
+                        byte opcode = input.get(position + 4);
+                        boolean command = handler.isCommand(opcode, payload);
+                        if (!handler.onFrame(opcode, payload)) {
+                            close();
+                            return;
+                        }
+                        wait = handler.charge(command, length);
+                    } else {
+                        // The line is found in place and handed over as bytes, only a command's arguments are ever decoded
+                        if (!lines.next(input)) {
+                            break;
+                        }
+                        boolean command = handler.isCommand(lines);
+                        if (!handler.onLine(lines)) {
+                            close();
+                            return;
+                        }
+                        wait = handler.charge(command, lines.length());
+                    }
+                    if (wait > 0) {
+                        // Picks up where it stopped once the wait is over, on this loop
+                        paused = true;
+                        interest(false);
+                        TIMER.schedule(() -> loop.execute(this::resume), wait, TimeUnit.NANOSECONDS);
+                        break;
+                    }
+                }
+                input.compact();
+            } catch (Exception e) {
+                ChatServer.metrics.error(e);
+                close();
+            } finally {
+                outbound.uncork();
+            }
+        }
+
+        private void resume() {
+            if (closed.get()) {
+                return;
+            }
+            paused = false;
+            interest(parked.get());
+            input.flip();
+            process();
+        }
+
+        // The socket has room again, the parked drain can go on
+        void writable() {
+            if (parked.compareAndSet(true, false)) {
+                drain();
+            }
+        }
+
+        /**
+         * The writer task of this connection, only ever run by the current owner of the
+         * outbound queue. Writes as much as the socket takes right now and parks on OP_WRITE
+         * with the rest.
+         */
+        private void drain() {
+            try {
+                do {
+                    while (true) {
+                        if (first == batched) {
+                            first = 0;
+                            batched = 0;
+                            Frame frame;
+                            while (batched < batch.length && (frame = outbound.poll()) != null) {
+                                if (handler.switched(frame)) {
+                                    continue;
+                                }
+                                // Views over the shared encoded bytes, nothing is copied
+                                batch[batched++] = frame.buffer(handler.writesBinary());
+                            }
+                            if (batched == 0) {
+                                break;
+                            }
+                        }
+                        ChatServer.metrics.bytesWritten.add(channel.write(batch, first, batched - first));
+                        ChatServer.metrics.writes.increment();
+                        while (first < batched && !batch[first].hasRemaining()) {
+                            batch[first++] = null;
+                            ChatServer.metrics.messagesOut.increment();
+                        }
+                        if (first < batched) {
+                            parked.set(true);
+                            interest(true);
+                            return;
+                        }
+                    }
+                    // Stop watching for OP_WRITE before giving up the queue, the next owner may need it again
+                    interest(false);
+                } while (outbound.rearm());
+            } catch (IOException e) {
+                ChatServer.metrics.error(e);
+                loop.execute(this::close);
+            }
+        }
+
+        // Watches for OP_WRITE only while a drain is parked, and for OP_READ unless the client is paused
+        private void interest(boolean write) {
+            int ops = (paused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0);
+            if (key != null && key.isValid() && key.interestOps() != ops) {
+                key.interestOps(ops);
+                loop.selector.wakeup();
+            }
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try { channel.close(); } catch (IOException e) {}
+            handler.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package DemoThree;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded queue of frames waiting to be written to one client. Senders only ever add
+ * to the queue, the actual socket writes are done by a single writer task per client, so
+ * a client that reads slowly can no longer stall whoever is broadcasting to it.
+ *
+ * Exactly one writer task owns the queue at a time: the sender that finds it idle starts
+ * the task through the ready callback, and the task keeps draining until rearm says there
+ * is nothing left.
+ *
+ * Frames are written in batches, so a client is not sent one syscall per line. While the
+ * client's own input is being handled the queue is corked, and the whole reply goes out in
+ * one write once the cork is pulled. Setting -Dchat.batch.delay also makes an idle writer
+ * wait that long for more frames before starting, which coalesces busy rooms' broadcasts.
+ *
+ * When the client drops without saying goodbye the queue is parked: it keeps collecting
+ * what the client misses, and hands it over to the client's next connection if it resumes.
+ */
+final class Outbound {
+
+    /**
+     * What to do with a line that does not fit in the queue anymore.
+     */
+    enum OverflowPolicy {
+        // Make room by throwing away the oldest queued chat line, protocol lines are kept
+        DROP_OLDEST,
+        // Throw away the line that did not fit
+        DROP_NEWEST,
+        // Give up on the client, it is too far behind to be worth serving
+        DISCONNECT;
+
+        // Reads the policy from a setting such as "drop-oldest"
+        static OverflowPolicy parse(String setting) {
+            return valueOf(setting.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    // The defaults can be changed at startup with -Dchat.outbound.capacity and -Dchat.outbound.overflow
+    static final int CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    static final OverflowPolicy POLICY = OverflowPolicy.parse(System.getProperty("chat.outbound.overflow", "disconnect"));
+    // Microseconds a writer waits for more frames before writing, and the most frames written in one go
+    static final long BATCH_DELAY = Long.getLong("chat.batch.delay", 0);
+    static final int BATCH_SIZE = Math.max(1, Integer.getInteger("chat.batch.size", 64));
+
+    // Starts the delayed writer tasks, only created if a delay is set
+    private static final class Timer {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "chat-batch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Marks where the client switched to the binary protocol, the writer task encodes the frames after it as binary
+    static final Frame BINARY = Frame.line(BinaryProtocol.OFFER);
+
+    private final ArrayBlockingQueue<Frame> queue;
+    private final OverflowPolicy policy;
+    private final Runnable ready;
+    private final Runnable overflow;
+    private final long delay;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+    private volatile boolean evicted;
+    private volatile boolean corked;
+    private volatile boolean parked;
+
+    /**
+     * @param ready    starts the writer task, called whenever lines are queued while no task is running
+     * @param overflow disconnects the client, called when the policy is DISCONNECT and the queue is full
+     * @param delay    microseconds to wait before starting the writer task, 0 to start it right away
+     */
+    Outbound(int capacity, OverflowPolicy policy, Runnable ready, Runnable overflow, long delay) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.ready = ready;
+        this.overflow = overflow;
+        this.delay = delay;
+    }
+
+    Outbound(int capacity, OverflowPolicy policy, Runnable ready, Runnable overflow) {
+        this(capacity, policy, ready, overflow, 0);
+    }
+
+    Outbound(Runnable ready, Runnable overflow) {
+        this(CAPACITY, POLICY, ready, overflow, BATCH_DELAY);
+    }
+
+    /**
+     * Queues a frame for the client. Never blocks, whatever the state of the client's socket.
+     * The same frame may be queued for any number of clients.
+     */
+    void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(frame)) {
+            // Nobody reads a parked queue, so whatever the policy only the latest lines are kept
+            switch (parked ? OverflowPolicy.DROP_OLDEST : policy) {
+                case DROP_NEWEST:
+                    dropped.incrementAndGet();
+                    return;
+                case DROP_OLDEST:
+                    while (!queue.offer(frame)) {
+                        if (dropOldestChat()) {
+                            continue;
+                        }
+                        // Nothing but protocol lines queued, a chat line just does not get in
+                        if (frame.isChat()) {
+                            dropped.incrementAndGet();
+                            return;
+                        }
+                        // And a protocol line takes the place of the oldest one, as it always did
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case DISCONNECT:
+                    dropped.incrementAndGet();
+                    closed = true;
+                    evicted = true;
+                    overflow.run();
+                    return;
+            }
+        }
+        if (!corked) {
+            start();
+        }
+    }
+
+    /**
+     * Throws away the oldest chat line in the queue. The protocol lines stay, as a client
+     * that lost the switch to binary, its NAMEACCEPTED or its RESUMETOKEN would no longer
+     * understand the server or be able to resume. Returns false if there was no chat line.
+     */
+    private boolean dropOldestChat() {
+        Iterator<Frame> frames = queue.iterator();
+        while (frames.hasNext()) {
+            if (frames.next().isChat()) {
+                frames.remove();
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Starts the writer task unless one is already running
+    private void start() {
+        if (scheduled.compareAndSet(false, true)) {
+            if (delay > 0) {
+                Timer.INSTANCE.schedule(ready, delay, TimeUnit.MICROSECONDS);
+            } else {
+                ready.run();
+            }
+        }
+    }
+
+    /**
+     * Holds back the writer task while the client's input is handled, every frame queued
+     * until uncork goes out in the same batch. Frames queued by other threads meanwhile wait
+     * too. Only the thread handling the client's input may cork and uncork.
+     */
+    void cork() {
+        corked = true;
+    }
+
+    void uncork() {
+        if (parked) {
+            return;
+        }
+        corked = false;
+        if (!queue.isEmpty() && !closed) {
+            start();
+        }
+    }
+
+    // The frames queued so far keep the line encoding, the writer task switches when it polls the marker
+    void switchToBinary() {
+        send(BINARY);
+    }
+
+    // The next frame to write, or null when the queue is empty. Only the writer task may call this
+    Frame poll() {
+        return queue.poll();
+    }
+
+    /**
+     * Called by the writer task once poll returned null. Returns true if lines arrived in the
+     * meantime and the task has to keep going, false if the task may stop.
+     */
+    boolean rearm() {
+        scheduled.set(false);
+        return !queue.isEmpty() && scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * The client went away but may come back. Nothing is written anymore, and frames keep
+     * being queued, the oldest ones making room for new ones once the queue is full.
+     */
+    void park() {
+        parked = true;
+        corked = true;
+    }
+
+    // Moves everything queued over to the outbound of the client's new connection, this one takes no more
+    void transferTo(Outbound next) {
+        closed = true;
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            // The next connection switches on its own, if it speaks binary at all
+            if (frame != BINARY) {
+                next.send(frame);
+            }
+        }
+    }
+
+    // Whether the client was disconnected for falling too far behind, such a client is not worth waiting for either
+    boolean evicted() {
+        return evicted;
+    }
+
+    // Number of lines thrown away because the client could not keep up
+    long dropped() {
+        return dropped.get();
+    }
+
+    // Stops accepting lines, the client is going away
+    void close() {
+        closed = true;
+        queue.clear();
+    }
+}
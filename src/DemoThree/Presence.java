@@ -0,0 +1,39 @@
+package DemoThree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of who is in a room, who coordinates it and who has been dethroned
+ * there, at one version of the room's Coordination. The replies to /userlist, /crdntrlist
+ * and /dthlist are encoded once per snapshot, and a snapshot is only built when one of them
+ * is asked for after something changed, so repeated requests cost nothing but a queued frame.
+ */
+final class Presence {
+
+    final long version;
+    final List<String> members;
+    final List<String> coordinators;
+    final List<String> dethroned;
+
+    // The replies, each sent as is to whoever asks
+    final Frame membersReply;
+    final Frame coordinatorsReply;
+    final Frame dethronedReply;
+
+    Presence(long version, Collection<String> members, Collection<String> coordinators, Collection<String> dethroned) {
+        this.version = version;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.coordinators = Collections.unmodifiableList(new ArrayList<>(coordinators));
+        this.dethroned = Collections.unmodifiableList(new ArrayList<>(dethroned));
+        this.membersReply = reply(this.members);
+        this.coordinatorsReply = reply(this.coordinators);
+        this.dethronedReply = reply(this.dethroned);
+    }
+
+    private Frame reply(List<String> names) {
+        return Frame.message("System: " + names + " (version " + version + ")");
+    }
+}
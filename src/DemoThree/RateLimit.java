@@ -0,0 +1,68 @@
+package DemoThree;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket for one client, limiting both how many lines and how many bytes it may
+ * send per second. The bucket holds one second worth of both, so short bursts go through
+ * at once and only a sustained flood is slowed down.
+ *
+ * A line is always charged after it was handled, and the bucket may go into debt for it.
+ * The debt is what the reading side waits out before reading the next line, which is how
+ * a client that sends too fast ends up stalled on its own socket instead of losing lines.
+ */
+final class RateLimit {
+
+    private final double linesPerSecond;
+    private final double bytesPerSecond;
+    // What is left in the bucket, negative when in debt
+    private double lines;
+    private double bytes;
+    private long refilled = System.nanoTime();
+
+    /**
+     * @param linesPerSecond lines allowed per second, 0 for no limit
+     * @param bytesPerSecond bytes allowed per second, 0 for no limit
+     */
+    RateLimit(double linesPerSecond, double bytesPerSecond) {
+        this.linesPerSecond = linesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.lines = linesPerSecond;
+        this.bytes = bytesPerSecond;
+    }
+
+    // The limits for chat lines are set with -Dchat.limit.chat.rate and -Dchat.limit.chat.bytes
+    static RateLimit chat() {
+        return fromProperties("chat", 20, 16 * 1024);
+    }
+
+    // The limits for commands are set with -Dchat.limit.command.rate and -Dchat.limit.command.bytes
+    static RateLimit commands() {
+        return fromProperties("command", 10, 4 * 1024);
+    }
+
+    private static RateLimit fromProperties(String kind, double rate, double size) {
+        return new RateLimit(Double.parseDouble(System.getProperty("chat.limit." + kind + ".rate", String.valueOf(rate))),
+                Double.parseDouble(System.getProperty("chat.limit." + kind + ".bytes", String.valueOf(size))));
+    }
+
+    /**
+     * Charges a line of the given size. Returns how many nanoseconds the client has to wait
+     * before the next line is read, 0 if it is still within its budget.
+     */
+    long charge(int size) {
+        long now = System.nanoTime();
+        double elapsed = (now - refilled) / (double) TimeUnit.SECONDS.toNanos(1);
+        refilled = now;
+        double wait = 0;
+        if (linesPerSecond > 0) {
+            lines = Math.min(linesPerSecond, lines + elapsed * linesPerSecond) - 1;
+            wait = Math.max(wait, -lines / linesPerSecond);
+        }
+        if (bytesPerSecond > 0) {
+            bytes = Math.min(bytesPerSecond, bytes + elapsed * bytesPerSecond) - size;
+            wait = Math.max(wait, -bytes / bytesPerSecond);
+        }
+        return (long) (wait * TimeUnit.SECONDS.toNanos(1));
+    }
+}
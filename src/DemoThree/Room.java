@@ -0,0 +1,80 @@
+package DemoThree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * A chat room. Everybody starts in the lobby and can move to any other room with /join,
+ * a broadcast only reaches the room it was sent in, and every room runs its own
+ * coordinator election and dethrone votes.
+ *
+ * A room lives on one shard, a single thread shared with other rooms. The room's local
+ * members and its coordination are only touched on that thread, so a broadcast is queued
+ * for the members without any locking, and busy rooms on different shards fan out in
+ * parallel.
+ */
+final class Room {
+
+    // The room every user is in after joining the server
+    static final String LOBBY = "lobby";
+
+    final String name;
+    final Coordination coordination;
+    private final Executor shard;
+    private final SessionRegistry sessions;
+    // The users in the room across the cluster, as far as this node knows, only changed by Rooms under the map's lock
+    int occupants;
+
+    // The members connected to this server, only touched on the shard
+    private final Map<String, Session> members = new LinkedHashMap<>();
+
+    Room(String name, Executor shard, SessionRegistry sessions) {
+        this.name = name;
+        this.shard = shard;
+        this.sessions = sessions;
+        this.coordination = new Coordination(name, sessions, shard);
+    }
+
+    // A local user comes in, from now on they get the room's broadcasts
+    void enter(Session session) {
+        shard.execute(() -> members.put(session.name, session));
+    }
+
+    void exit(Session session) {
+        shard.execute(() -> members.remove(session.name, session));
+    }
+
+    /**
+     * Hands a parked member over to their new connection. The new session takes over the
+     * role and the place in the registry, then gets everything queued for the old one while
+     * the client was away. Runs on the shard, where the room's broadcasts and role changes
+     * happen too, so none of them can slip in between.
+     */
+    void resume(Session parked, Session resumed) {
+        shard.execute(() -> {
+            resumed.setRoom(parked.room());
+            String coordinates = parked.coordinates();
+            if (coordinates != null) {
+                resumed.grantCoordinator(coordinates);
+            }
+            sessions.replace(parked, resumed);
+            members.put(resumed.name, resumed);
+            parked.out.transferTo(resumed.out);
+        });
+    }
+
+    /**
+     * Queues the frame for every local member. Runs on the shard, so lines sent to one room
+     * reach everybody in the order they were sent.
+     */
+    void deliver(Frame frame) {
+        shard.execute(() -> {
+            long start = System.nanoTime();
+            for (Session session : members.values()) {
+                session.out.send(frame);
+            }
+            ChatServer.metrics.broadcast.record(System.nanoTime() - start);
+        });
+    }
+}
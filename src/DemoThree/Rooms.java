@@ -0,0 +1,81 @@
+package DemoThree;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * All the rooms, created the first time somebody joins them, and the shards they run on.
+ * A room is pinned to the shard its name hashes to, the number of shards is set with
+ * -Dchat.shards and defaults to the number of cores.
+ *
+ * Every room counts the users in it, local or on other cluster nodes, and is dropped along
+ * with its coordination as soon as the last one is gone, so rooms made up on the fly with
+ * /join do not pile up. Only the lobby is always there. The count is only changed inside
+ * the map's compute, so a room cannot be dropped while somebody is entering it.
+ */
+final class Rooms {
+
+    private final SessionRegistry sessions;
+    private final Executor[] shards;
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    Rooms(SessionRegistry sessions, int shards) {
+        this.sessions = sessions;
+        this.shards = new Executor[Math.max(1, shards)];
+        for (int i = 0; i < this.shards.length; i++) {
+            String name = "chat-shard-" + i;
+            ExecutorService shard = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.shards[i] = shard;
+        }
+        rooms.put(Room.LOBBY, create(Room.LOBBY));
+    }
+
+    private Room create(String name) {
+        return new Room(name, shards[(name.hashCode() & Integer.MAX_VALUE) % shards.length], sessions);
+    }
+
+    // Counts one more user in the room, creating it if nobody was in it, every occupy is matched by a vacate
+    Room occupy(String name) {
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = create(key);
+            }
+            room.occupants++;
+            return room;
+        });
+    }
+
+    // Counts one user less in the room, which goes away once it is empty, unless it is the lobby
+    void vacate(String name) {
+        rooms.computeIfPresent(name, (key, room) -> --room.occupants > 0 || key.equals(Room.LOBBY) ? room : null);
+    }
+
+    // The room, or null if nobody is in it, in which case there is nobody to deliver to either
+    Room find(String name) {
+        return rooms.get(name);
+    }
+
+    Collection<Room> all() {
+        return rooms.values();
+    }
+
+    // A room name is a single word, it travels between cluster nodes in tab separated lines
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > 32) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+package DemoThree;
+
+/**
+ * The client's most recent chat lines, in a fixed ring. The network thread adds every line
+ * it receives, and the Swing timer takes whatever arrived since its last tick in one go. A
+ * line the screen could not keep anyway is simply overwritten, so a flood costs a bounded
+ * amount of memory and the Swing thread never handles more than one screenful per tick.
+ */
+final class Scrollback {
+
+    private final String[] lines;
+    // Lines added since the start, and how many of them were already taken
+    private long added;
+    private long taken;
+
+    Scrollback(int capacity) {
+        this.lines = new String[Math.max(1, capacity)];
+    }
+
+    int capacity() {
+        return lines.length;
+    }
+
+    synchronized void add(String line) {
+        lines[(int) (added++ % lines.length)] = line;
+    }
+
+    /**
+     * Appends every line added since the last call, one per row, skipping the ones which
+     * have been overwritten meanwhile. Returns the number of lines appended.
+     */
+    synchronized int drainTo(StringBuilder out) {
+        long from = Math.max(taken, added - lines.length);
+        for (long i = from; i < added; i++) {
+            out.append(lines[(int) (i % lines.length)]).append('\n');
+        }
+        taken = added;
+        return (int) (added - from);
+    }
+}
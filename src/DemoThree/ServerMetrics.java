@@ -0,0 +1,165 @@
+package DemoThree;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of the running server. Every recording is a LongAdder increment or
+ * a LatencyHistogram bucket increment, so the paths being measured never take a lock for it.
+ *
+ * Coordinators can read them with /stats, and they are registered as an MBean, so jconsole
+ * or any other JMX client on the same machine can watch them too. The latency of every
+ * command is kept on its CommandTable entry.
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+
+    private final SessionRegistry sessions;
+
+    // Connections accepted since startup, whether they got as far as a name or not
+    final LongAdder connections = new LongAdder();
+    // Lines and frames received from clients, and sent to them
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    // Writes to client sockets, each one a syscall carrying a whole batch of frames
+    final LongAdder writes = new LongAdder();
+    // Times a client went over its rate limit and had its socket left unread for a while
+    final LongAdder throttled = new LongAdder();
+    // Sessions taken over by a new connection with their resumption token
+    final LongAdder resumed = new LongAdder();
+    // Connections hung up on after going quiet for three heartbeats
+    final LongAdder reaped = new LongAdder();
+    // Time to queue a broadcast for every recipient
+    final LatencyHistogram broadcast = new LatencyHistogram();
+    // From accepting the connection to sending NAMEACCEPTED
+    final LatencyHistogram handshake = new LatencyHistogram();
+
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    ServerMetrics(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+
+    // Counts an exception by its type
+    void error(Throwable e) {
+        LongAdder count = errors.get(e.getClass().getSimpleName());
+        if (count == null) {
+            count = errors.computeIfAbsent(e.getClass().getSimpleName(), type -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    // Counts a frame written to a client
+    void sent(int bytes) {
+        messagesOut.increment();
+        bytesWritten.add(bytes);
+    }
+
+    // Makes the metrics visible over JMX, failing to do so is not worth stopping the server for
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("DemoThree:type=ServerMetrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics are not available over JMX: " + e);
+        }
+    }
+
+    // The lines /stats replies with
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Sessions: " + getConnectedSessions() + " connected, " + getConnections() + " connections since startup, " + getResumed() + " resumed");
+        lines.add("Messages: " + getMessagesIn() + " in, " + getMessagesOut() + " out, " + getBytesWritten() + " bytes in " + getWrites() + " writes");
+        lines.add("Throttled: " + getThrottled() + " times, " + getReaped() + " idle connections reaped");
+        lines.add("Broadcast: " + getBroadcastLatency());
+        lines.add("Handshake: " + getHandshakeLatency());
+        for (Map.Entry<String, String> command : getCommandLatencies().entrySet()) {
+            lines.add("/" + command.getKey() + ": " + command.getValue());
+        }
+        lines.add("Errors: " + getErrors());
+        return lines;
+    }
+
+    @Override
+    public int getConnectedSessions() {
+        return sessions.size();
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getResumed() {
+        return resumed.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    @Override
+    public String getBroadcastLatency() {
+        return broadcast.summary();
+    }
+
+    @Override
+    public String getHandshakeLatency() {
+        return handshake.summary();
+    }
+
+    // Only the commands which have been run at least once
+    @Override
+    public Map<String, String> getCommandLatencies() {
+        Map<String, String> latencies = new TreeMap<>();
+        for (CommandTable.Entry<ChatServer.Handler> entry : ChatServer.Handler.COMMANDS.entries()) {
+            if (entry.latency.count() > 0) {
+                latencies.put(entry.verb, entry.latency.summary());
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> error : errors.entrySet()) {
+            counts.put(error.getKey(), error.getValue().sum());
+        }
+        return counts;
+    }
+}
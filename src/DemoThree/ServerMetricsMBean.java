@@ -0,0 +1,36 @@
+package DemoThree;
+
+import java.util.Map;
+
+/**
+ * The server's counters as seen over JMX, under DemoThree:type=ServerMetrics. Latencies are
+ * given as percentile summaries in microseconds.
+ */
+public interface ServerMetricsMBean {
+
+    int getConnectedSessions();
+
+    long getConnections();
+
+    long getResumed();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesWritten();
+
+    long getWrites();
+
+    long getThrottled();
+
+    long getReaped();
+
+    String getBroadcastLatency();
+
+    String getHandshakeLatency();
+
+    Map<String, String> getCommandLatencies();
+
+    Map<String, Long> getErrors();
+}
@@ -0,0 +1,115 @@
+package DemoThree;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A registered chatter, as kept in the SessionRegistry under its screen name. It holds
+ * everything the server needs to reach or judge that user, so commands such as /whisper
+ * or /bestow only need a single lookup by name.
+ *
+ * In a cluster the registry also holds the users of the other nodes. Those sessions have
+ * no queue, only the node they are connected to, which is where their lines are relayed.
+ */
+final class Session {
+
+    // The node of a session connected to this server
+    static final int LOCAL = -1;
+
+    // The screen name, the ip the client reported and the queue of lines towards the client
+    // The queue is null for the users of other cluster nodes, "node" tells which one they are on
+    final String name;
+    final String ip;
+    final Outbound out;
+    final int node;
+
+    // The room the user is in, and the room they coordinate if any
+    // Roles are handed out by each room's coordination, a user only counts as coordinator in their current room
+    private volatile String room = Room.LOBBY;
+    private final AtomicReference<String> coordinates = new AtomicReference<>();
+    // The digest of the token the client can resume the session with, null until one is issued
+    // Only the client has the token itself, so neither the registry nor a snapshot holds anything to resume with
+    private volatile String tokenDigest;
+
+    Session(String name, String ip, Outbound out) {
+        this.name = name;
+        this.ip = ip;
+        this.out = out;
+        this.node = LOCAL;
+    }
+
+    // A user connected to another node of the cluster
+    Session(String name, String ip, int node) {
+        this.name = name;
+        this.ip = ip;
+        this.out = null;
+        this.node = node;
+    }
+
+    // The longest screen name and ip accepted, in characters
+    static final int MAX_NAME = 32;
+    static final int MAX_IP = 64;
+
+    static boolean isValidName(String name) {
+        return isValid(name, MAX_NAME);
+    }
+
+    static boolean isValidIp(String ip) {
+        return isValid(ip, MAX_IP);
+    }
+
+    /**
+     * Names and ips travel in protocol lines and in the tab separated lines between cluster
+     * nodes, so they must not hold any control character, tabs and line breaks included,
+     * and their length is bounded.
+     */
+    private static boolean isValid(String text, int max) {
+        if (text.isEmpty() || text.length() > max) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isISOControl(c) || c == '\u2028' || c == '\u2029') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isLocal() {
+        return node == LOCAL;
+    }
+
+    String room() {
+        return room;
+    }
+
+    void setRoom(String room) {
+        this.room = room;
+    }
+
+    boolean isCoordinator() {
+        return room.equals(coordinates.get());
+    }
+
+    // The room the user coordinates, or null
+    String coordinates() {
+        return coordinates.get();
+    }
+
+    void grantCoordinator(String room) {
+        coordinates.set(room);
+    }
+
+    String tokenDigest() {
+        return tokenDigest;
+    }
+
+    void setTokenDigest(String tokenDigest) {
+        this.tokenDigest = tokenDigest;
+    }
+
+    // Only revokes the role in the given room, the user may have been made coordinator of the next one already
+    void revokeCoordinator(String room) {
+        coordinates.compareAndSet(room, null);
+    }
+}
@@ -0,0 +1,117 @@
+package DemoThree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All the registered sessions, indexed by screen name. This replaces the parallel names,
+ * writers and ips collections, which had to be walked side by side and assumed that two
+ * hash sets iterate in the same order.
+ *
+ * Every operation is backed by concurrent maps, so none of them blocks inside a monitor.
+ *
+ * In cluster mode the registry knows the users of every node, so names stay unique across
+ * the cluster and lookups by name find remote users too, but only the local sessions are
+ * broadcast to directly.
+ */
+final class SessionRegistry {
+
+    // Every known user, names are only ever claimed in this map so there is a single place deciding uniqueness
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    // The sessions connected to this server
+    private final ConcurrentHashMap<String, Session> local = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the session under its name. Returns false if the name is already taken,
+     * in which case nothing changes.
+     */
+    boolean register(Session session) {
+        if (sessions.putIfAbsent(session.name, session) != null) {
+            return false;
+        }
+        if (session.isLocal()) {
+            local.put(session.name, session);
+        }
+        return true;
+    }
+
+    // Removes the session, unless the name has been taken over by somebody else in the meantime
+    // Returns false if it was not registered anymore
+    boolean remove(Session session) {
+        if (!sessions.remove(session.name, session)) {
+            return false;
+        }
+        local.remove(session.name, session);
+        return true;
+    }
+
+    // Puts a resumed session in the place of the parked one, unless that one was removed in the meantime
+    void replace(Session parked, Session resumed) {
+        if (sessions.replace(parked.name, parked, resumed)) {
+            local.put(resumed.name, resumed);
+        }
+    }
+
+    // Removes every user of a cluster node, returns their sessions
+    List<Session> removeNode(int node) {
+        List<Session> removed = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            if (session.node == node && remove(session)) {
+                removed.add(session);
+            }
+        }
+        return removed;
+    }
+
+    Session get(String name) {
+        return sessions.get(name);
+    }
+
+    boolean contains(String name) {
+        return sessions.containsKey(name);
+    }
+
+    // Number of sessions connected to this server
+    int size() {
+        return local.size();
+    }
+
+    boolean isEmpty() {
+        return local.isEmpty();
+    }
+
+    // The sessions connected to this server, which are the ones a broadcast is queued for
+    Collection<Session> all() {
+        return local.values();
+    }
+
+    // A live, read only view of the screen names, across the cluster
+    Set<String> names() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    // The ip of every client in the cluster, one entry per session as many clients can share the same ip
+    List<String> ips() {
+        List<String> ips = new ArrayList<>(sessions.size());
+        for (Session session : sessions.values()) {
+            ips.add(session.ip);
+        }
+        return ips;
+    }
+
+    // The names of the users in every room, across the cluster
+    Map<String, List<String>> rooms() {
+        Map<String, List<String>> rooms = new TreeMap<>();
+        for (Session session : sessions.values()) {
+            rooms.computeIfAbsent(session.room(), room -> new ArrayList<>()).add(session.name);
+        }
+        return rooms;
+    }
+}
@@ -0,0 +1,255 @@
+package DemoThree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+
+/**
+ * The server's state as saved to disk, so a restarted server can take its clients back:
+ * the coordination of every room (members, coordinators, dethroned users and the running
+ * vote) and every session with the digest of its resumption token.
+ *
+ * The snapshot is copy on write. Each room's shard copies its coordination only after it
+ * changed, and the writer thread encodes the copies and the sessions on its own, so the
+ * handlers never wait for it. The file is laid out as
+ *
+ *   int magic | sessions | rooms | long crc32 of everything before it
+ *
+ * with every string in modified UTF-8. It is written to a temporary file, forced to disk
+ * and then renamed over the previous one, so a crash at any point leaves either the old
+ * snapshot or the new one, never half of one. The file is only readable by the server's
+ * own user where the file system has POSIX permissions.
+ */
+final class StateSnapshot {
+
+    // "CHS2", the first version kept the tokens themselves
+    private static final int MAGIC = 0x43485332;
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    // A session as it was saved, the client can take it back with the token matching the digest
+    static final class SessionState {
+        final String name;
+        final String ip;
+        final String room;
+        final String tokenDigest;
+
+        SessionState(String name, String ip, String room, String tokenDigest) {
+            this.name = name;
+            this.ip = ip;
+            this.room = room;
+            this.tokenDigest = tokenDigest;
+        }
+    }
+
+    // The coordination of a room as it was saved, target is null unless a vote was running
+    static final class RoomState {
+        final String room;
+        final long version;
+        final List<String> members;
+        final List<String> coordinators;
+        final List<String> dethroned;
+        final String target;
+        final List<String> yesvoters;
+        final List<String> novoters;
+
+        RoomState(String room, long version, Collection<String> members, Collection<String> coordinators,
+                Collection<String> dethroned, String target, Collection<String> yesvoters, Collection<String> novoters) {
+            this.room = room;
+            this.version = version;
+            this.members = Collections.unmodifiableList(new ArrayList<>(members));
+            this.coordinators = Collections.unmodifiableList(new ArrayList<>(coordinators));
+            this.dethroned = Collections.unmodifiableList(new ArrayList<>(dethroned));
+            this.target = target;
+            this.yesvoters = Collections.unmodifiableList(new ArrayList<>(yesvoters));
+            this.novoters = Collections.unmodifiableList(new ArrayList<>(novoters));
+        }
+    }
+
+    final List<SessionState> sessions;
+    final List<RoomState> rooms;
+
+    StateSnapshot(List<SessionState> sessions, List<RoomState> rooms) {
+        this.sessions = Collections.unmodifiableList(sessions);
+        this.rooms = Collections.unmodifiableList(rooms);
+    }
+
+    /**
+     * Starts the writer thread, which saves the state to the file every interval, unless
+     * nothing changed since the last time.
+     */
+    static void start(Path file, long interval, SessionRegistry sessions, Rooms rooms) {
+        Thread thread = new Thread(() -> {
+            byte[] written = null;
+            while (true) {
+                try {
+                    Thread.sleep(interval);
+                    byte[] encoded = capture(sessions, rooms).encode();
+                    if (!Arrays.equals(encoded, written)) {
+                        write(file, encoded);
+                        written = encoded;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Snapshot error: " + e);
+                }
+            }
+        }, "chat-snapshot");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Asks every room's shard for its copy, then reads the sessions while the shards are at it
+    static StateSnapshot capture(SessionRegistry sessions, Rooms rooms) {
+        List<CompletableFuture<RoomState>> saving = new ArrayList<>();
+        for (Room room : rooms.all()) {
+            saving.add(room.coordination.save());
+        }
+        List<SessionState> saved = new ArrayList<>();
+        for (Session session : sessions.all()) {
+            // Only a session with a token can ever be taken back
+            String digest = session.tokenDigest();
+            if (digest != null) {
+                saved.add(new SessionState(session.name, session.ip, session.room(), digest));
+            }
+        }
+        List<RoomState> states = new ArrayList<>(saving.size());
+        for (CompletableFuture<RoomState> room : saving) {
+            states.add(room.join());
+        }
+        return new StateSnapshot(saved, states);
+    }
+
+    /**
+     * Reads the snapshot left by an earlier run. Returns null if there is none, or if it
+     * cannot be trusted, in which case the server starts empty.
+     */
+    static StateSnapshot read(Path file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < 4 + 8) {
+            System.out.println("Ignoring the damaged snapshot " + file);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong()) {
+            System.out.println("Ignoring the damaged snapshot " + file);
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if (in.readInt() != MAGIC) {
+            System.out.println("Ignoring " + file + ", it is not a snapshot");
+            return null;
+        }
+        int count = in.readInt();
+        List<SessionState> sessions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sessions.add(new SessionState(in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF()));
+        }
+        count = in.readInt();
+        List<RoomState> rooms = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String room = in.readUTF();
+            long version = in.readLong();
+            List<String> members = readNames(in);
+            List<String> coordinators = readNames(in);
+            List<String> dethroned = readNames(in);
+            String target = in.readBoolean() ? in.readUTF() : null;
+            rooms.add(new RoomState(room, version, members, coordinators, dethroned, target, readNames(in), readNames(in)));
+        }
+        return new StateSnapshot(sessions, rooms);
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(sessions.size());
+        for (SessionState session : sessions) {
+            out.writeUTF(session.name);
+            out.writeUTF(session.ip);
+            out.writeUTF(session.room);
+            out.writeUTF(session.tokenDigest);
+        }
+        out.writeInt(rooms.size());
+        for (RoomState room : rooms) {
+            out.writeUTF(room.room);
+            out.writeLong(room.version);
+            writeNames(out, room.members);
+            writeNames(out, room.coordinators);
+            writeNames(out, room.dethroned);
+            out.writeBoolean(room.target != null);
+            if (room.target != null) {
+                out.writeUTF(room.target);
+            }
+            writeNames(out, room.yesvoters);
+            writeNames(out, room.novoters);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    // Replaces the file in one rename, once the new content is safely on disk
+    private static void write(Path file, byte[] encoded) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        // Permissions only apply when a file is created, a temporary file left by a crash goes first
+        Files.deleteIfExists(temporary);
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        FileAttribute<?>[] ownerOnly = POSIX ? new FileAttribute<?>[] {OWNER_ONLY} : new FileAttribute<?>[0];
+        try (FileChannel channel = FileChannel.open(temporary, options, ownerOnly)) {
+            ByteBuffer buffer = ByteBuffer.wrap(encoded);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static List<String> readNames(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,97 @@
+package DemoThree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for the many coarse timeouts of the server, such as the idle check of
+ * every session. Time is cut into ticks and the wheel into slots, a task goes in the slot of
+ * the tick it is due at, and every tick only the tasks of one slot are looked at. Scheduling
+ * and expiring are both O(1), however many sessions are being watched.
+ *
+ * Any thread may schedule, the tasks themselves all run on the wheel's own thread, so they
+ * have to be short.
+ */
+final class TimerWheel implements Runnable {
+
+    private static final class Timeout {
+        final Runnable task;
+        // The tick the task is due at, it may be several turns of the wheel away
+        final long due;
+
+        Timeout(Runnable task, long due) {
+            this.task = task;
+            this.due = due;
+        }
+    }
+
+    private final long tick;
+    private final List<ArrayDeque<Timeout>> slots;
+    private final int mask;
+    // Tasks scheduled since the last tick, only the wheel's thread touches the slots
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long start = System.nanoTime();
+    private final Thread thread;
+    private long ticks;
+
+    /**
+     * @param tick  length of a tick, no timeout fires more precisely than that
+     * @param slots number of slots, rounded up to a power of two
+     */
+    TimerWheel(long tick, TimeUnit unit, int slots) {
+        this.tick = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+        this.slots = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            this.slots.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.thread = new Thread(this, "chat-timer-wheel");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // Runs the task once the delay is over, rounded up to the next tick so it never runs early
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        long due = (System.nanoTime() - start + unit.toNanos(delay) + tick - 1) / tick;
+        added.add(new Timeout(task, due));
+    }
+
+    public void run() {
+        while (true) {
+            // Sleeps until the next tick, ticks missed while the thread was held up are caught up one by one
+            long next = start + (ticks + 1) * tick;
+            long now;
+            while ((now = System.nanoTime()) - next < 0) {
+                LockSupport.parkNanos(next - now);
+            }
+            ticks++;
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                slots.get((int) (Math.max(timeout.due, ticks) & mask)).add(timeout);
+            }
+            Iterator<Timeout> due = slots.get((int) (ticks & mask)).iterator();
+            while (due.hasNext()) {
+                timeout = due.next();
+                if (timeout.due > ticks) {
+                    continue;
+                }
+                due.remove();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    // A failing task must never stop the other timeouts
+                    System.out.println("Timer error: " + e);
+                }
+            }
+        }
+    }
+}